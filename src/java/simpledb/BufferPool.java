@@ -1,9 +1,16 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 
 import java.util.*;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -27,23 +34,547 @@ public class BufferPool {
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
 
-    private static ConcurrentHashMap<PageId, Page> bufferPoll;
-    private int maxPage;
+    /**
+     * Name of the replacement policy used by {@link #BufferPool(int)}, read
+     * from the simpledb.BufferPool.policy system property: "clock" (the
+     * default), "lru-k" or "2q". For example, -Dsimpledb.BufferPool.policy=2q
+     */
+    public static final String POLICY = System.getProperty("simpledb.BufferPool.policy", "clock");
+
+    /** K used by the "lru-k" policy, from simpledb.BufferPool.lruK. */
+    public static final int LRU_K = Integer.getInteger("simpledb.BufferPool.lruK", 2);
+
+    /** Frames in the ring of a large sequential scan, from simpledb.BufferPool.ringPages. */
+    public static final int RING_PAGES = Integer.getInteger("simpledb.BufferPool.ringPages", 8);
+
+    /**
+     * Tables with more pages than this fraction of the pool are scanned
+     * through a {@link BufferRing} by plans from {@link LogicalPlan}. Read
+     * from simpledb.BufferPool.ringThreshold.
+     */
+    public static final double RING_THRESHOLD =
+        Double.parseDouble(System.getProperty("simpledb.BufferPool.ringThreshold", "0.25"));
+
+    /**
+     * Milliseconds between rounds of the background writer, which writes
+     * pages with committed changes to disk between checkpoints. Read from
+     * simpledb.BufferPool.writerInterval; 0 (the default) disables it.
+     */
+    public static final long WRITER_INTERVAL = Long.getLong("simpledb.BufferPool.writerInterval", 0);
+
+    /** Pages the background writer writes per round, from simpledb.BufferPool.writerBatch. */
+    public static final int WRITER_BATCH = Integer.getInteger("simpledb.BufferPool.writerBatch", 64);
 
-    private Queue<PageId> pageIdQueue;
+    /**
+     * Whether {@link #BufferPool(int)} keeps page images off the Java heap,
+     * in a {@link FrameArena}. Read from the simpledb.BufferPool.offHeap
+     * system property, e.g. -Dsimpledb.BufferPool.offHeap=true
+     */
+    public static final boolean OFF_HEAP = Boolean.getBoolean("simpledb.BufferPool.offHeap");
+
+    /**
+     * Whether pages changed by running transactions may be written to disk
+     * to make room in the pool (STEAL). Read from the simpledb.BufferPool.steal
+     * system property; by default (NO STEAL) such pages stay in the pool
+     * until their transaction ends.
+     */
+    public static final boolean STEAL = Boolean.getBoolean("simpledb.BufferPool.steal");
+
+    /** Longest run of consecutive pages {@link #prewarm} reads at once. */
+    private static final int PREWARM_RUN_PAGES = 32;
+    private static final int HOT_PAGE_MAGIC = 0x484f5431; // "HOT1"
+
+    private final ConcurrentHashMap<PageId, Page> bufferPoll;
+    private volatile int maxPage;
+
+    private final ReplacementPolicy policy;
+    /** Resident pages that belong to a scan's ring rather than the policy. */
+    private final ConcurrentHashMap<PageId, BufferRing> ringPages = new ConcurrentHashMap<>();
+    /** Reads in progress, so that concurrent misses on a page share one read. */
+    private final ConcurrentHashMap<PageId, FutureTask<Page>> loading = new ConcurrentHashMap<>();
     private LockManager lock;
 
+    /** Frames for page images when off-heap, or null. */
+    private final FrameArena arena;
+
     /**
-     * Creates a BufferPool that caches up to numPages pages.
+     * Pin counts of pages, in total and by the transaction that pinned them.
+     * Protected by pinLock, which is also held while a page is evicted so
+     * that a page cannot be pinned and evicted at the same time.
+     */
+    private final Object pinLock = new Object();
+    private final HashMap<PageId, Integer> pinCounts = new HashMap<>();
+    private final HashMap<TransactionId, HashMap<PageId, Integer>> pinsByTransaction = new HashMap<>();
+
+    /**
+     * Pages each running transaction may have dirtied: every page it got
+     * with READ_WRITE permission. Commit and abort only look at these pages,
+     * not at every page the transaction read.
+     */
+    private final ConcurrentHashMap<TransactionId, Set<PageId>> dirtiedPages = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong steals = new AtomicLong();
+
+    private volatile boolean steal = STEAL;
+
+    /**
+     * File the ids of resident pages are saved to for {@link #prewarm}, or
+     * null to not save them. Defaults to the simpledb.BufferPool.hotPageFile
+     * system property.
+     */
+    private volatile File hotPageFile = System.getProperty("simpledb.BufferPool.hotPageFile") == null
+        ? null : new File(System.getProperty("simpledb.BufferPool.hotPageFile"));
+
+    /** Files written by flushPage that have not been forced to disk yet. */
+    private final Set<DbFile> unforcedFiles = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The dirty page table: for each page with logged changes that were not
+     * written to disk since, the LSN of the first of them (its recLSN).
+     * Changed only while holding this, so checkpoints see it in step with
+     * the log.
+     */
+    private final ConcurrentHashMap<PageId, Long> recLsns = new ConcurrentHashMap<>();
+
+    /** Guards writer. */
+    private final Object writerLock = new Object();
+    private Thread writer;
+    private volatile long writerInterval;
+    /** Shared page locks of the background writer are taken for this id. */
+    private final TransactionId writerTid = new TransactionId();
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages, using the
+     * replacement policy named by {@link #POLICY}.
      *
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
+        this(numPages, createPolicy(POLICY, numPages));
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages, off the heap if
+     * {@link #OFF_HEAP} is set.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policy decides which page to evict when the pool is full.
+     */
+    public BufferPool(int numPages, ReplacementPolicy policy) {
+        this(numPages, policy, OFF_HEAP);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policy decides which page to evict when the pool is full.
+     * @param offHeap if true, the images of HeapFile pages are read into
+     *        frames of a {@link FrameArena} allocated up front, instead of
+     *        into a heap array per page
+     */
+    public BufferPool(int numPages, ReplacementPolicy policy, boolean offHeap) {
         // some code goes here
         bufferPoll = new ConcurrentHashMap<>();
         maxPage = numPages;
-        pageIdQueue = new LinkedList<>();
+        this.policy = policy;
         this.lock = new LockManager();
+        this.arena = offHeap ? new FrameArena(numPages, pageSize) : null;
+        setWriterInterval(WRITER_INTERVAL);
+    }
+
+    /**
+     * Creates the replacement policy with the given name.
+     *
+     * @param name "clock", "lru-k" or "2q"
+     * @param numPages the size of the pool the policy is for
+     * @throws IllegalArgumentException if the name is unknown
+     */
+    public static ReplacementPolicy createPolicy(String name, int numPages) {
+        switch (name.toLowerCase()) {
+        case "clock":
+            return new ClockPolicy();
+        case "lru-k":
+            return new LruKPolicy(LRU_K);
+        case "2q":
+            return new TwoQueuePolicy(numPages);
+        default:
+            throw new IllegalArgumentException("unknown replacement policy " + name);
+        }
+    }
+
+    /** Returns the number of getPage calls that found the page resident. */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /** Returns the number of getPage calls that had to read the page. */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /** Returns the number of pages evicted to make room for other pages. */
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * Returns the number of pages with uncommitted changes written to disk
+     * to make room in the pool.
+     */
+    public long getStealCount() {
+        return steals.get();
+    }
+
+    /**
+     * Sets whether pages changed by running transactions may be evicted.
+     * With STEAL, such a page is logged and the log forced up to its LSN
+     * before the page is written; an abort rolls it back from the log, as
+     * does recovery after a crash. With NO STEAL, a transaction whose
+     * changes fill the pool fails with a DbException.
+     *
+     * @see #STEAL
+     */
+    public void setSteal(boolean steal) {
+        this.steal = steal;
+    }
+
+    /** Returns whether pages changed by running transactions may be evicted. */
+    public boolean getSteal() {
+        return steal;
+    }
+
+    /** Returns the maximum number of pages in this buffer pool. */
+    public int getNumPages() {
+        return maxPage;
+    }
+
+    /**
+     * Changes the maximum number of pages in this buffer pool while it is in
+     * use, keeping the cached pages and all locks. Growing takes effect
+     * immediately. Shrinking evicts clean pages right away; pages that are
+     * dirty or pinned stay until later cache misses evict them, at most two
+     * per miss, so a running workload does not stall on a burst of writes.
+     *
+     * @param numPages the new maximum number of pages; must be at least 1
+     */
+    public void resize(int numPages) throws DbException {
+        if (numPages < 1) {
+            throw new IllegalArgumentException("a buffer pool needs at least one page");
+        }
+        synchronized (this) {
+            if (arena != null) {
+                arena.grow(numPages);
+            }
+            maxPage = numPages;
+            policy.resize(numPages);
+        }
+        while (bufferPoll.size() > numPages && evictCleanPage()) {
+            // keep going while there are clean pages to drop
+        }
+    }
+
+    /**
+     * Evicts a clean, unpinned page.
+     *
+     * @return false if there is no such page
+     */
+    private synchronized boolean evictCleanPage() {
+        PageId victim = policy.chooseVictim(new ReplacementPolicy.Evictable() {
+            public boolean canEvict(PageId pid) {
+                Page page = bufferPoll.get(pid);
+                return page != null && page.isDirty() == null && getPinCount(pid) == 0;
+            }
+        });
+        if (victim == null) {
+            return false;
+        }
+        synchronized (pinLock) {
+            if (!pinCounts.containsKey(victim)) {
+                discardPage(victim);
+                evictions.incrementAndGet();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sets the file the ids of resident pages are saved to at checkpoints
+     * and read from by {@link #prewarm}.
+     *
+     * @param file the file, or null to not save the resident pages
+     */
+    public void setHotPageFile(File file) {
+        this.hotPageFile = file;
+    }
+
+    /** Returns the hot page file, or null if there is none. */
+    public File getHotPageFile() {
+        return hotPageFile;
+    }
+
+    /**
+     * Saves the ids of the HeapFile pages in the pool to the hot page file,
+     * if one is set, so that {@link #prewarm} can load them after a
+     * restart. Called at every checkpoint. The file is replaced atomically,
+     * so a crash while saving leaves the previous list.
+     */
+    public void saveHotPages() throws IOException {
+        File file = hotPageFile;
+        if (file == null) {
+            return;
+        }
+        ArrayList<HeapPageId> pids = new ArrayList<>();
+        for (PageId pid : bufferPoll.keySet()) {
+            if (pid instanceof HeapPageId) {
+                pids.add((HeapPageId) pid);
+            }
+        }
+        sortInFileOrder(pids);
+
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(HOT_PAGE_MAGIC);
+            out.writeInt(pids.size());
+            for (HeapPageId pid : pids) {
+                out.writeInt(pid.getTableId());
+                out.writeInt(pid.getPageNumber());
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** Sorts page ids by table, and by page number within a table. */
+    private static void sortInFileOrder(List<HeapPageId> pids) {
+        Collections.sort(pids, new Comparator<HeapPageId>() {
+            public int compare(HeapPageId a, HeapPageId b) {
+                int c = Integer.compare(a.getTableId(), b.getTableId());
+                return c != 0 ? c : Integer.compare(a.getPageNumber(), b.getPageNumber());
+            }
+        });
+    }
+
+    /**
+     * Sets how often the background writer runs, starting it if needed.
+     * Each round writes up to {@link #WRITER_BATCH} pages with committed
+     * changes, oldest recLSN first; see {@link #writeCommittedPages}. The
+     * writer stops when the interval is set to 0 or the pool is no longer
+     * the database's.
+     *
+     * @param millis the interval in milliseconds, or 0 to stop the writer
+     * @see #WRITER_INTERVAL
+     */
+    public void setWriterInterval(long millis) {
+        synchronized (writerLock) {
+            writerInterval = millis;
+            if (millis <= 0 || writer != null) {
+                return;
+            }
+            writer = new Thread("BufferPool writer") {
+                public void run() {
+                    try {
+                        while (true) {
+                            long interval = writerInterval;
+                            if (interval > 0) {
+                                Thread.sleep(interval);
+                            }
+                            synchronized (writerLock) {
+                                if (writerInterval <= 0 || Database.getBufferPool() != BufferPool.this) {
+                                    writer = null;
+                                    return;
+                                }
+                            }
+                            writeCommittedPages(WRITER_BATCH);
+                        }
+                    } catch (InterruptedException e) {
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                    synchronized (writerLock) {
+                        writer = null;
+                    }
+                }
+            };
+            writer.setDaemon(true);
+            writer.start();
+        }
+    }
+
+    /** Returns the interval of the background writer in milliseconds, or 0. */
+    public long getWriterInterval() {
+        return writerInterval;
+    }
+
+    /**
+     * Starts a background thread that loads the pages saved in the hot page
+     * file by {@link #saveHotPages}. Pages are read in file order, a run of
+     * consecutive pages at a time, until the list is exhausted or the pool
+     * is full; prewarming never evicts a page. Pages of tables that are no
+     * longer in the catalog are skipped. Transactions can use the pool
+     * meanwhile: a page they ask for while it is being prewarmed is read
+     * only once.
+     *
+     * @return the thread, which has already been started
+     */
+    public Thread prewarm() {
+        Thread t = new Thread("BufferPool prewarm") {
+            public void run() {
+                try {
+                    loadHotPages();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+
+    /**
+     * Loads the pages saved in the hot page file; the work done by the
+     * {@link #prewarm} thread.
+     *
+     * @return the number of pages added to the pool
+     */
+    int loadHotPages() throws IOException {
+        File file = hotPageFile;
+        if (file == null || !file.exists()) {
+            return 0;
+        }
+        ArrayList<HeapPageId> pids = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != HOT_PAGE_MAGIC) {
+                return 0;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                pids.add(new HeapPageId(in.readInt(), in.readInt()));
+            }
+        } catch (EOFException e) {
+            // a truncated list is still worth loading
+        }
+        sortInFileOrder(pids);
+
+        int loaded = 0;
+        int start = 0;
+        while (start < pids.size() && bufferPoll.size() < maxPage) {
+            int end = start + 1;
+            while (end < pids.size() && end - start < PREWARM_RUN_PAGES
+                    && pids.get(end).getTableId() == pids.get(start).getTableId()
+                    && pids.get(end).getPageNumber() == pids.get(end - 1).getPageNumber() + 1) {
+                end++;
+            }
+            loaded += loadRun(pids.subList(start, end));
+            start = end;
+        }
+        return loaded;
+    }
+
+    /** Task of a prewarm claim; waiters only need to know it finished. */
+    private static final Callable<Page> NO_PAGE = new Callable<Page>() {
+        public Page call() {
+            return null;
+        }
+    };
+
+    /**
+     * Reads a run of consecutive pages of one table with a single read and
+     * adds the ones that are not in the pool yet.
+     *
+     * @return the number of pages added to the pool
+     */
+    private int loadRun(List<HeapPageId> run) throws IOException {
+        HeapPageId first = run.get(0);
+        DbFile file;
+        try {
+            file = Database.getCatalog().getDatabaseFile(first.getTableId());
+        } catch (NoSuchElementException e) {
+            return 0;
+        }
+        if (!(file instanceof HeapFile)) {
+            return 0;
+        }
+        HeapFile hf = (HeapFile) file;
+        int numPages = Math.min(run.size(), hf.numPages() - first.getPageNumber());
+        if (numPages <= 0) {
+            return 0;
+        }
+
+        // claim the pages like a miss does, so that getPage waits for them
+        // instead of reading them again
+        ArrayList<FutureTask<Page>> claims = new ArrayList<>(numPages);
+        for (int i = 0; i < numPages; i++) {
+            FutureTask<Page> claim = new FutureTask<>(NO_PAGE);
+            PageId pid = run.get(i);
+            if (bufferPoll.containsKey(pid) || loading.putIfAbsent(pid, claim) != null) {
+                claim = null;
+            }
+            claims.add(claim);
+        }
+
+        int loaded = 0;
+        try {
+            ByteBuffer buf = ByteBuffer.allocate(numPages * pageSize);
+            hf.readPages(first.getPageNumber(), buf);
+            for (int i = 0; i < numPages; i++) {
+                HeapPageId pid = run.get(i);
+                if (claims.get(i) == null || bufferPoll.containsKey(pid) || bufferPoll.size() >= maxPage) {
+                    continue;
+                }
+                ByteBuffer src = buf.duplicate();
+                src.position(i * pageSize);
+                src.limit((i + 1) * pageSize);
+                int frame = allocateFrame();
+                ByteBuffer image = frame >= 0 ? arena.frame(frame) : ByteBuffer.allocate(pageSize);
+                image.duplicate().put(src);
+                Page page = hf.pageOf(pid, image, frame);
+                if (bufferPoll.putIfAbsent(pid, page) == null) {
+                    policy.pageAdded(pid);
+                    loaded++;
+                } else {
+                    release(page);
+                }
+            }
+        } finally {
+            for (int i = 0; i < numPages; i++) {
+                FutureTask<Page> claim = claims.get(i);
+                if (claim != null) {
+                    claim.run();
+                    loading.remove(run.get(i), claim);
+                }
+            }
+        }
+        return loaded;
+    }
+
+    /** Returns true if this pool keeps page images in a {@link FrameArena}. */
+    public boolean isOffHeap() {
+        return arena != null;
+    }
+
+    /**
+     * Creates a ring for a large sequential scan of {@link #RING_PAGES}
+     * frames, or an eighth of the pool if that is smaller.
+     */
+    public BufferRing newRing() {
+        return new BufferRing(Math.max(1, Math.min(RING_PAGES, maxPage / 8)));
+    }
+
+    /**
+     * Gives up the frames of a ring whose scan is done. Its clean pages
+     * leave the pool; dirty ones are handed to the replacement policy.
+     */
+    public void releaseRing(BufferRing ring) {
+        for (PageId pid : ring.clear()) {
+            recycle(pid, ring);
+        }
     }
     
     public static int getPageSize() {
@@ -76,29 +607,285 @@ public class BufferPool {
      * @param perm the requested permissions on the page
      */
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException, DbException {
+        return getPage(tid, pid, perm, null);
+    }
+
+    /**
+     * Retrieve the specified page with the associated permissions, like
+     * {@link #getPage(TransactionId, PageId, Permissions)}. If the page is not
+     * in the buffer pool, it is read into a frame of the specified ring
+     * instead of a frame of the shared pool, replacing the oldest page of
+     * the ring.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param perm the requested permissions on the page
+     * @param ring the ring of the calling scan, or null to use the shared pool
+     */
+    public Page getPage(TransactionId tid, PageId pid, Permissions perm, BufferRing ring)
         throws TransactionAbortedException, DbException {
         // some code goes here
-        if (bufferPoll.size() >= maxPage){
+        if (bufferPoll.size() >= maxPage && !bufferPoll.containsKey(pid)
+                && (ring == null || !ring.isFull())){
             evictPage();
+            if (bufferPoll.size() >= maxPage) {
+                // still shrinking after a resize; the remaining pages may
+                // all be pinned, in which case the pool stays over size
+                try {
+                    evictPage();
+                } catch (DbException e) {
+                }
+            }
+        }
+
+        try {
+            if (!lock.acquireLock(tid, pid, perm)){
+                throw new TransactionAbortedException();
+            }
+        } catch (InterruptedException e) {
+            System.out.println(e);
+        }
+        if (perm == Permissions.READ_WRITE) {
+            addDirtyPage(tid, pid);
+        }
+
+        while (true) {
+            Page page = bufferPoll.get(pid);
+            if (page != null) {
+                hits.incrementAndGet();
+                if (!ringPages.containsKey(pid)) {
+                    policy.pageAccessed(pid);
+                } else if (ring == null && ringPages.remove(pid) != null) {
+                    // someone besides the scan wants it; keep it in the pool
+                    policy.pageAdded(pid);
+                }
+                return page;
+            }
+
+            // single flight: the first thread to miss reads the page, any
+            // other thread that misses meanwhile waits for that read and
+            // then finds the page in the pool
+            FutureTask<Page> load = new FutureTask<>(new PageReader(pid));
+            FutureTask<Page> pending = loading.putIfAbsent(pid, load);
+            if (pending != null) {
+                awaitLoad(pending);
+                continue;
+            }
+            try {
+                if (bufferPoll.containsKey(pid)) {
+                    // a load finished between the lookup and registering ours
+                    continue;
+                }
+                misses.incrementAndGet();
+                load.run();
+                page = awaitLoad(load);
+                Page cached = bufferPoll.putIfAbsent(pid, page);
+                if (cached != null) {
+                    release(page);
+                    return cached;
+                }
+                if (ring == null) {
+                    policy.pageAdded(pid);
+                } else {
+                    ringPages.put(pid, ring);
+                    PageId old = ring.add(pid);
+                    if (old != null) {
+                        recycle(old, ring);
+                    }
+                }
+                return page;
+            } finally {
+                loading.remove(pid, load);
+            }
+        }
+    }
+
+    /**
+     * Reads a page from its file; the task run by a single-flight load.
+     * Off-heap, HeapFile pages are read straight into a free frame, or
+     * copied into one if the file overrides readPage. If no frame is free,
+     * which can happen while several misses are loading at once, the page
+     * stays on the heap.
+     */
+    private class PageReader implements Callable<Page> {
+        private final PageId pid;
+
+        PageReader(PageId pid) {
+            this.pid = pid;
         }
 
-        synchronized (lock) {
+        public Page call() {
+            DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+            int frame = file instanceof HeapFile ? allocateFrame() : -1;
+            if (frame < 0) {
+                return file.readPage(pid);
+            }
             try {
-                if (!lock.acquireLock(tid, pid, perm)){
-                    //System.out.println("Throw");
-                    throw new TransactionAbortedException();
+                ByteBuffer image = arena.frame(frame);
+                if (file.getClass() == HeapFile.class) {
+                    return ((HeapFile) file).readPage(pid, image, frame);
                 }
-            } catch (InterruptedException e) {
-                System.out.println(e);
+                Page page = file.readPage(pid);
+                image.duplicate().put(page.getPageData());
+                return new HeapPage((HeapPageId) page.getId(), image, frame);
+            } catch (RuntimeException e) {
+                arena.release(frame);
+                throw e;
             }
+        }
+    }
 
+    /**
+     * Takes a free frame of the arena for a page of the current page size.
+     *
+     * @return the frame, or -1 if the pool is on the heap or has no free frame
+     */
+    private int allocateFrame() {
+        if (arena == null || arena.getPageSize() != pageSize) {
+            return -1;
+        }
+        int frame = arena.allocate();
+        if (frame >= 0) {
+            // only a page that is still referenced needs its image copied
+            Object previous = arena.takeOccupant(frame);
+            if (previous != null) {
+                ((HeapPage) previous).detach();
+            }
+        }
+        return frame;
+    }
 
-            if (!bufferPoll.containsKey(pid)) {
-                Page currentPage = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
-                bufferPoll.put(pid, currentPage);
-                pageIdQueue.add(pid);
+    /**
+     * Returns the frame of a page that left the pool, if it has one, to the
+     * arena. The image is not copied unless the page is still referenced
+     * when the frame is taken again; see allocateFrame.
+     */
+    private void release(Page page) {
+        if (page instanceof HeapPage) {
+            int frame = ((HeapPage) page).leaveFrame();
+            if (frame >= 0) {
+                arena.release(frame, page);
+            }
+        }
+    }
+
+    /**
+     * Retrieve the specified page like
+     * {@link #getPage(TransactionId, PageId, Permissions)} and pin it. A pinned
+     * page is never evicted; every pin must be undone with
+     * {@link #unpinPage}, or is undone when the transaction completes.
+     */
+    public Page pinPage(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException, DbException {
+        return pinPage(tid, pid, perm, null);
+    }
+
+    /**
+     * Retrieve the specified page like
+     * {@link #getPage(TransactionId, PageId, Permissions, BufferRing)} and
+     * pin it.
+     *
+     * @see #pinPage(TransactionId, PageId, Permissions)
+     */
+    public Page pinPage(TransactionId tid, PageId pid, Permissions perm, BufferRing ring)
+        throws TransactionAbortedException, DbException {
+        while (true) {
+            Page page = getPage(tid, pid, perm, ring);
+            synchronized (pinLock) {
+                // the page may have been evicted since getPage returned it
+                if (bufferPoll.get(pid) == page) {
+                    increment(pinCounts, pid);
+                    HashMap<PageId, Integer> pins = pinsByTransaction.get(tid);
+                    if (pins == null) {
+                        pins = new HashMap<>();
+                        pinsByTransaction.put(tid, pins);
+                    }
+                    increment(pins, pid);
+                    return page;
+                }
+            }
+        }
+    }
+
+    /**
+     * Undoes one pin of the specified page by the specified transaction.
+     * Does nothing if the transaction holds no pin on the page, e.g.
+     * because its pins were dropped when it completed.
+     */
+    public void unpinPage(TransactionId tid, PageId pid) {
+        synchronized (pinLock) {
+            HashMap<PageId, Integer> pins = pinsByTransaction.get(tid);
+            if (pins == null || !pins.containsKey(pid)) {
+                return;
+            }
+            decrement(pins, pid);
+            if (pins.isEmpty()) {
+                pinsByTransaction.remove(tid);
+            }
+            decrement(pinCounts, pid);
+        }
+    }
+
+    /** Undoes every pin the specified transaction still holds. */
+    private void unpinAll(TransactionId tid) {
+        synchronized (pinLock) {
+            HashMap<PageId, Integer> pins = pinsByTransaction.remove(tid);
+            if (pins == null) {
+                return;
+            }
+            for (Map.Entry<PageId, Integer> e : pins.entrySet()) {
+                for (int i = 0; i < e.getValue(); i++) {
+                    decrement(pinCounts, e.getKey());
+                }
+            }
+        }
+    }
+
+    private static void increment(HashMap<PageId, Integer> counts, PageId pid) {
+        Integer count = counts.get(pid);
+        counts.put(pid, count == null ? 1 : count + 1);
+    }
+
+    private static void decrement(HashMap<PageId, Integer> counts, PageId pid) {
+        int count = counts.get(pid);
+        if (count == 1) {
+            counts.remove(pid);
+        } else {
+            counts.put(pid, count - 1);
+        }
+    }
+
+    /** Returns the number of pins currently held on the specified page. */
+    public int getPinCount(PageId pid) {
+        synchronized (pinLock) {
+            Integer count = pinCounts.get(pid);
+            return count == null ? 0 : count;
+        }
+    }
+
+    /**
+     * Waits for a page load to finish, rethrowing whatever the read threw.
+     */
+    private static Page awaitLoad(FutureTask<Page> load) throws DbException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return load.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new DbException("could not read page: " + cause);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
             }
-            return bufferPoll.get(pid);
         }
     }
 
@@ -128,6 +915,38 @@ public class BufferPool {
         transactionComplete(tid, true);
     }
 
+    /** Adds a page to the pages the specified transaction may have dirtied. */
+    private void addDirtyPage(TransactionId tid, PageId pid) {
+        Set<PageId> pids = dirtiedPages.get(tid);
+        if (pids == null) {
+            Set<PageId> created = ConcurrentHashMap.newKeySet();
+            pids = dirtiedPages.putIfAbsent(tid, created);
+            if (pids == null) {
+                pids = created;
+            }
+        }
+        pids.add(pid);
+    }
+
+    /**
+     * Returns the resident pages the specified transaction may have dirtied.
+     * Some of them may be clean, because they were never changed or were
+     * flushed since.
+     */
+    private ArrayList<Page> getDirtiedPages(TransactionId tid) {
+        ArrayList<Page> pages = new ArrayList<>();
+        Set<PageId> pids = dirtiedPages.get(tid);
+        if (pids != null) {
+            for (PageId pid : pids) {
+                Page page = bufferPoll.get(pid);
+                if (page != null) {
+                    pages.add(page);
+                }
+            }
+        }
+        return pages;
+    }
+
     /** Return true if the specified transaction has a lock on the specified page */
     public boolean holdsLock(TransactionId tid, PageId p) {
         // some code goes here
@@ -137,7 +956,9 @@ public class BufferPool {
 
     /**
      * Commit or abort a given transaction; release all locks associated to
-     * the transaction.
+     * the transaction. Only the pages the transaction got with READ_WRITE
+     * permission are examined, so the cost of commit depends on how many
+     * pages the transaction wrote rather than how many it read.
      *
      * @param tid the ID of the transaction requesting the unlock
      * @param commit a flag indicating whether we should commit or abort
@@ -147,22 +968,90 @@ public class BufferPool {
         // some code goes here
         // not necessary for lab1|lab2
 
-        for (LockManager.Lock lock: lock.getTransactionLocks(tid)) {
-            PageId pid = lock.getPID();
-            if (bufferPoll.containsKey(pid)) {
-                Page page = bufferPoll.get(pid);
-                Database.getLogFile().logWrite(tid, page.getBeforeImage(), page);
-                Database.getLogFile().force();
+        // the log is not forced here: the UPDATE records precede the
+        // commit record, which LogFile.logCommit forces with its group
+        for (Page page : getDirtiedPages(tid)) {
+            boolean dirty = tid.equals(page.isDirty());
+            if (commit) {
+                // pages flushed before commit were logged by flushPage, but
+                // still need their before image brought up to date
+                if (dirty) {
+                    long lsn = Database.getLogFile().logWrite(tid, page.getBeforeImage(), page);
+                    if (page instanceof HeapPage) {
+                        ((HeapPage) page).setLsn(lsn);
+                    }
+                    recLsns.putIfAbsent(page.getId(), lsn);
+                }
                 page.setBeforeImage();
-                if (!commit){
-                    Page restorePage = page.getBeforeImage();
-                    bufferPoll.replace(pid, restorePage);
+            } else if (dirty) {
+                // the file holds the version from before tid, or a version
+                // LogFile.logAbort rolled back, unless it lacks changes
+                // committed since the page was last written
+                if (recLsns.containsKey(page.getId()) && page instanceof HeapPage) {
+                    HeapPage before = (HeapPage) page.getBeforeImage();
+                    before.setLsn(((HeapPage) page).getLsn());
+                    writePage(before);
                 }
+                discardPage(page.getId());
+            } else if (page.isDirty() == null) {
+                // written since tid changed it, so maybe with its changes;
+                // the file is rolled back by LogFile.logAbort
+                discardPage(page.getId());
             }
+        }
+        updateFreeSpace(tid, commit);
+        dirtiedPages.remove(tid);
+
+        for (LockManager.Lock lock: lock.getTransactionLocks(tid)) {
+            PageId pid = lock.getPID();
             if (holdsLock(tid, pid)){
                 releasePage(tid, pid);
             }
         }
+        unpinAll(tid);
+        forceFiles();
+    }
+
+    /**
+     * Lets the heap files the specified transaction changed update their
+     * free space maps now that it ended; see {@link HeapFile#transactionComplete}.
+     */
+    private void updateFreeSpace(TransactionId tid, boolean commit) {
+        Set<PageId> pids = dirtiedPages.get(tid);
+        if (pids == null) {
+            return;
+        }
+        for (PageId pid : pids) {
+            if (!(pid instanceof HeapPageId)) {
+                continue;
+            }
+            DbFile file;
+            try {
+                file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+            } catch (NoSuchElementException e) {
+                // the table left the catalog
+                continue;
+            }
+            if (file instanceof HeapFile) {
+                Page page = bufferPoll.get(pid);
+                ((HeapFile) file).transactionComplete(tid, pid.getPageNumber(),
+                        page instanceof HeapPage ? (HeapPage) page : null, commit);
+            }
+        }
+    }
+
+    /**
+     * Force every file written by this buffer pool since the last call out
+     * to disk. Page writes are not synchronous, so this is the durability
+     * point for pages flushed on eviction or by flushAllPages.
+     */
+    public void forceFiles() throws IOException {
+        Iterator<DbFile> it = unforcedFiles.iterator();
+        while (it.hasNext()) {
+            DbFile file = it.next();
+            it.remove();
+            file.force();
+        }
     }
 
     /**
@@ -188,12 +1077,8 @@ public class BufferPool {
         ArrayList<Page> dirtyPages = file.insertTuple(tid, t);
         for (Page page: dirtyPages){
             page.markDirty(true, tid);
-            if (bufferPoll.size() >= maxPage && !bufferPoll.contains(page)){
-                evictPage();
-            }
-            bufferPoll.put(page.getId(), page);
-            pageIdQueue.remove(page.getId());
-            pageIdQueue.add(page.getId());
+            addDirtyPage(tid, page.getId());
+            cachePage(page);
         }
     }
 
@@ -219,12 +1104,56 @@ public class BufferPool {
         ArrayList<Page> dirtyPages = file.deleteTuple(tid, t);
         for (Page page: dirtyPages){
             page.markDirty(true, tid);
-            if (bufferPoll.size() >= maxPage && !bufferPoll.contains(page)){
+            addDirtyPage(tid, page.getId());
+            cachePage(page);
+        }
+    }
+
+    /**
+     * Frees the frame of a page that dropped out of the specified ring. The
+     * page is left alone if it no longer belongs to the ring, and handed to
+     * the replacement policy instead of discarded if it is dirty or pinned.
+     */
+    private void recycle(PageId pid, BufferRing ring) {
+        if (!ringPages.remove(pid, ring)) {
+            return;
+        }
+        Page page = bufferPoll.get(pid);
+        if (page == null) {
+            return;
+        }
+        synchronized (pinLock) {
+            if (page.isDirty() == null && !pinCounts.containsKey(pid)) {
+                if (bufferPoll.remove(pid, page)) {
+                    release(page);
+                }
+                return;
+            }
+        }
+        // the policy is not called with pinLock held; evictPage calls
+        // getPinCount from inside the policy
+        policy.pageAdded(pid);
+    }
+
+    /**
+     * Adds a page dirtied by insertTuple or deleteTuple to the pool,
+     * replacing any cached version of it.
+     */
+    private void cachePage(Page page) throws DbException {
+        PageId pid = page.getId();
+        if (ringPages.remove(pid) != null) {
+            policy.pageAdded(pid);
+        } else if (bufferPoll.containsKey(pid)) {
+            policy.pageAccessed(pid);
+        } else {
+            if (bufferPoll.size() >= maxPage) {
                 evictPage();
             }
-            bufferPoll.put(page.getId(), page);
-            pageIdQueue.remove(page.getId());
-            pageIdQueue.add(page.getId());
+            policy.pageAdded(pid);
+        }
+        Page old = bufferPoll.put(pid, page);
+        if (old != null && old != page) {
+            release(old);
         }
     }
 
@@ -253,8 +1182,15 @@ public class BufferPool {
     public synchronized void discardPage(PageId pid) {
         // some code goes here
         // not necessary for lab1
-        bufferPoll.remove(pid);
-        pageIdQueue.remove(pid);
+        Page page = bufferPoll.remove(pid);
+        // the caller wrote the page, or does not want its changes
+        recLsns.remove(pid);
+        if (page != null) {
+            if (ringPages.remove(pid) == null) {
+                policy.pageRemoved(pid);
+            }
+            release(page);
+        }
     }
 
     /**
@@ -268,12 +1204,90 @@ public class BufferPool {
         Page page = bufferPoll.get(pid);
         TransactionId tid = page.isDirty();
         if (tid != null){
-            Database.getLogFile().logWrite(tid, page.getBeforeImage(), page);
-            Database.getLogFile().force();
-            HeapFile file = (HeapFile) Database.getCatalog().getDatabaseFile(pid.getTableId());
-            file.writePage(page);
+            // changes of a committed transaction were logged at commit
+            if (dirtiedPages.containsKey(tid) || !(page instanceof HeapPage)) {
+                long lsn = Database.getLogFile().logWrite(tid, page.getBeforeImage(), page);
+                if (page instanceof HeapPage) {
+                    ((HeapPage) page).setLsn(lsn);
+                } else {
+                    Database.getLogFile().force(lsn);
+                }
+            }
+            writePage(page);
             page.markDirty(false, null);
+            recLsns.remove(pid);
+        }
+    }
+
+    /**
+     * Writes a page to its file, after forcing the log up to the LSN of the
+     * page, so that no change reaches disk before its log record (WAL). The
+     * file is not forced.
+     */
+    private void writePage(Page page) throws IOException {
+        if (page instanceof HeapPage && ((HeapPage) page).getLsn() != PageLsnMap.NO_LSN) {
+            Database.getLogFile().force(((HeapPage) page).getLsn());
         }
+        DbFile file = Database.getCatalog().getDatabaseFile(page.getId().getTableId());
+        file.writePage(page);
+        unforcedFiles.add(file);
+    }
+
+    /**
+     * Returns a copy of the dirty page table: for each page with logged
+     * changes that were not written to disk since, the LSN of the first of
+     * them. Pages written but not yet forced are not included; a checkpoint
+     * must force the files after taking the table.
+     */
+    public synchronized Map<PageId, Long> getDirtyPageTable() {
+        return new HashMap<>(recLsns);
+    }
+
+    /**
+     * Writes up to max pages whose changes were all made by committed
+     * transactions, oldest recLSN first, without logging them again: their
+     * changes were logged at commit. Pages a running transaction is changing
+     * are skipped, so transactions keep running while pages are written.
+     * The files are not forced.
+     *
+     * @return the number of pages written
+     */
+    public int writeCommittedPages(int max) throws IOException {
+        ArrayList<Map.Entry<PageId, Long>> pages = new ArrayList<>(recLsns.entrySet());
+        Collections.sort(pages, new Comparator<Map.Entry<PageId, Long>>() {
+            public int compare(Map.Entry<PageId, Long> a, Map.Entry<PageId, Long> b) {
+                return Long.compare(a.getValue(), b.getValue());
+            }
+        });
+        int written = 0;
+        for (Map.Entry<PageId, Long> e : pages) {
+            if (written >= max) {
+                break;
+            }
+            PageId pid = e.getKey();
+            // a shared lock keeps writers of the page out while it is written
+            if (!lock.tryAcquireSharedLock(writerTid, pid)) {
+                continue;
+            }
+            try {
+                synchronized (this) {
+                    Page page = bufferPoll.get(pid);
+                    TransactionId tid = page == null ? null : page.isDirty();
+                    if (tid == null || dirtiedPages.containsKey(tid) || !(page instanceof HeapPage)) {
+                        continue;
+                    }
+                    // locks are released before the commit record is
+                    // forced, so the page's records may not be on disk yet
+                    writePage(page);
+                    page.markDirty(false, null);
+                    recLsns.remove(pid);
+                    written++;
+                }
+            } finally {
+                lock.releaseLock(writerTid, pid);
+            }
+        }
+        return written;
     }
 
     /** Write all pages of the specified transaction to disk.
@@ -281,8 +1295,8 @@ public class BufferPool {
     public synchronized  void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
-        for (Page page: bufferPoll.values()){
-            if (tid.equals(page.isDirty())){
+        for (Page page : getDirtiedPages(tid)) {
+            if (tid.equals(page.isDirty())) {
                 flushPage(page.getId());
             }
         }
@@ -295,30 +1309,82 @@ public class BufferPool {
     private synchronized  void evictPage() throws DbException {
         // some code goes here
         // not necessary for lab1
-        Iterator<PageId> IdItor = pageIdQueue.iterator();
-        assert (pageIdQueue.size() == bufferPoll.size());
-
-        while(IdItor.hasNext()){
-            PageId currentID = IdItor.next();
-            if (bufferPoll.get(currentID).isDirty() == null){
-                try{
-                    flushPage(currentID);
-                } catch (IOException e){
-                    e.printStackTrace();
+        while (true) {
+            PageId victim = chooseVictim();
+            if (victim == null) {
+                throw new DbException(steal
+                    ? "no page can be evicted from the buffer pool"
+                    : "no page can be evicted from the buffer pool without STEAL");
+            }
+
+            try{
+                Page page = bufferPoll.get(victim);
+                TransactionId tid = page == null ? null : page.isDirty();
+                if (tid != null && dirtiedPages.containsKey(tid)) {
+                    steals.incrementAndGet();
+                }
+                flushPage(victim);
+            } catch (IOException e){
+                e.printStackTrace();
+            }
+            synchronized (pinLock) {
+                // otherwise it was pinned while being flushed; try another
+                if (!pinCounts.containsKey(victim)) {
+                    discardPage(victim);
+                    evictions.incrementAndGet();
+                    return;
                 }
-                discardPage(currentID);
-                return;
             }
         }
+    }
+
+    /**
+     * Picks the page evictPage should evict: preferably a clean page, then
+     * a page whose changes are committed, and never a pinned one. A page
+     * with uncommitted changes is only picked with STEAL.
+     *
+     * @return the victim, or null if no page can be evicted
+     */
+    private PageId chooseVictim() {
+        PageId victim = policy.chooseVictim(new ReplacementPolicy.Evictable() {
+            public boolean canEvict(PageId pid) {
+                Page page = bufferPoll.get(pid);
+                return page != null && page.isDirty() == null && getPinCount(pid) == 0;
+            }
+        });
 
-        // All pages are dirty... In this case, evict the first page in page queue.
-        try{
-            flushPage(pageIdQueue.peek());
-        } catch (IOException e){
-            e.printStackTrace();
+        if (victim == null) {
+            // take a clean page from a scan's ring, which is cheaper to
+            // lose than a dirty page
+            for (Map.Entry<PageId, BufferRing> e : ringPages.entrySet()) {
+                Page page = bufferPoll.get(e.getKey());
+                if (page != null && page.isDirty() == null && getPinCount(e.getKey()) == 0) {
+                    victim = e.getKey();
+                    break;
+                }
+            }
+        }
+        if (victim == null) {
+            // All pages are dirty... committed changes are in the log
+            // already, so those pages only need writing
+            victim = policy.chooseVictim(new ReplacementPolicy.Evictable() {
+                public boolean canEvict(PageId pid) {
+                    Page page = bufferPoll.get(pid);
+                    TransactionId tid = page == null ? null : page.isDirty();
+                    return page != null && getPinCount(pid) == 0
+                        && (tid == null || !dirtiedPages.containsKey(tid));
+                }
+            });
+        }
+        if (victim == null && steal) {
+            // evict whichever page the policy would pick regardless
+            victim = policy.chooseVictim(new ReplacementPolicy.Evictable() {
+                public boolean canEvict(PageId pid) {
+                    return bufferPoll.containsKey(pid) && getPinCount(pid) == 0;
+                }
+            });
         }
-        discardPage(pageIdQueue.peek());
-        return;
+        return victim;
     }
 
 }
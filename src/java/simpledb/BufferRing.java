@@ -0,0 +1,79 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * BufferRing is a small, private set of buffer pool frames used by one
+ * large sequential scan. Pages the scan reads into the pool through its
+ * ring are not seen by the replacement policy; once the ring is full, each
+ * new page takes the frame of the page the scan read longest ago. A scan
+ * over a table much larger than the pool therefore only ever occupies
+ * {@link #size()} frames and does not push the pages other transactions
+ * use out of the pool.
+ * <p>
+ * A ring page that is accessed without the ring, or that is dirty when its
+ * frame is reused, becomes an ordinary page of the shared pool. Ring pages
+ * count towards the size of the pool, and the pool may take clean ones back
+ * when it has nothing else to evict; scans should hand their ring back with
+ * {@link BufferPool#releaseRing} when they are done.
+ *
+ * @see BufferPool#getPage(TransactionId, PageId, Permissions, BufferRing)
+ * @Threadsafe
+ */
+public class BufferRing {
+
+    private final PageId[] slots;
+    private int next = 0;
+    private int used = 0;
+
+    /**
+     * Creates a ring of the specified number of frames.
+     *
+     * @param size the number of frames; must be at least 1
+     */
+    public BufferRing(int size) {
+        if (size < 1) throw new IllegalArgumentException("a ring needs at least one frame");
+        this.slots = new PageId[size];
+    }
+
+    /** Returns the number of frames in this ring. */
+    public int size() {
+        return slots.length;
+    }
+
+    /**
+     * Puts the specified page in the next frame of the ring.
+     *
+     * @return the page that used to be in that frame, or null if the frame
+     *         was empty
+     */
+    synchronized PageId add(PageId pid) {
+        PageId old = slots[next];
+        slots[next] = pid;
+        next = (next + 1) % slots.length;
+        if (old == null) {
+            used++;
+        }
+        return old;
+    }
+
+    /** Returns true if adding a page will reuse the frame of another page. */
+    synchronized boolean isFull() {
+        return used == slots.length;
+    }
+
+    /** Empties the ring and returns the pages that were in it. */
+    synchronized List<PageId> clear() {
+        List<PageId> pages = new ArrayList<>(used);
+        for (int i = 0; i < slots.length; i++) {
+            if (slots[i] != null) {
+                pages.add(slots[i]);
+                slots[i] = null;
+            }
+        }
+        next = 0;
+        used = 0;
+        return pages;
+    }
+}
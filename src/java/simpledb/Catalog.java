@@ -50,6 +50,9 @@ public class Catalog {
             IDtoName.remove(((DbFile)current[0]).getId());
             catalog.remove(name);
             catalog.put(name, fileAndKey);
+            if (current[0] != file) {
+                close((DbFile)current[0]);
+            }
         }
         IDtoName.put(file.getId(), name);
     }
@@ -121,8 +124,20 @@ public class Catalog {
         throw new NoSuchElementException();
     }
     
-    /** Delete all tables from the catalog */
+    /** Closes a file that left the catalog. */
+    private static void close(DbFile file) {
+        try {
+            file.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /** Delete all tables from the catalog, closing their files */
     public void clear() {
+        for (Object[] fileAndKey : catalog.values()) {
+            close((DbFile)fileAndKey[0]);
+        }
         catalog.clear();
         IDtoName.clear();
     }
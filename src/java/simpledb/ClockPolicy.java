@@ -0,0 +1,85 @@
+package simpledb;
+
+import java.util.HashMap;
+
+/**
+ * CLOCK (second chance) replacement. Resident pages sit on a circular list
+ * with a reference bit that is set on every access. The clock hand sweeps
+ * the list, clearing set bits, and picks the first evictable page whose
+ * bit is already clear. Every operation other than the sweep is O(1).
+ */
+public class ClockPolicy implements ReplacementPolicy {
+
+    private static class Frame {
+        final PageId pid;
+        boolean referenced;
+        Frame prev, next;
+
+        Frame(PageId pid) {
+            this.pid = pid;
+        }
+    }
+
+    private final HashMap<PageId, Frame> frames = new HashMap<>();
+    /** Next frame the clock hand looks at; null if there are no frames. */
+    private Frame hand;
+
+    public synchronized void pageAdded(PageId pid) {
+        if (frames.containsKey(pid)) {
+            pageAccessed(pid);
+            return;
+        }
+        Frame f = new Frame(pid);
+        f.referenced = true;
+        if (hand == null) {
+            f.prev = f;
+            f.next = f;
+            hand = f;
+        } else {
+            // insert just behind the hand, i.e. as far from eviction as possible
+            f.next = hand;
+            f.prev = hand.prev;
+            hand.prev.next = f;
+            hand.prev = f;
+        }
+        frames.put(pid, f);
+    }
+
+    public synchronized void pageAccessed(PageId pid) {
+        Frame f = frames.get(pid);
+        if (f != null) {
+            f.referenced = true;
+        }
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        Frame f = frames.remove(pid);
+        if (f == null) {
+            return;
+        }
+        if (f.next == f) {
+            hand = null;
+        } else {
+            f.prev.next = f.next;
+            f.next.prev = f.prev;
+            if (hand == f) {
+                hand = f.next;
+            }
+        }
+    }
+
+    public synchronized PageId chooseVictim(Evictable evictable) {
+        // two full sweeps clear every reference bit, so if nothing was found
+        // by then no resident page is evictable
+        for (int i = 0; hand != null && i < 2 * frames.size(); i++) {
+            Frame f = hand;
+            hand = f.next;
+            if (f.referenced) {
+                f.referenced = false;
+            } else if (evictable.canEvict(f.pid)) {
+                return f.pid;
+            }
+        }
+        return null;
+    }
+}
@@ -75,6 +75,9 @@ public class Database {
 
     // reset the database, used for unit tests only.
     public static void reset() {
+        // the catalog's tables are static, so close them before the new
+        // catalog forgets them
+        _instance.get()._catalog.clear();
         _instance.set(new Database());
     }
 
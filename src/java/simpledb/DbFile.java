@@ -28,6 +28,25 @@ public interface DbFile {
      */
     public void writePage(Page p) throws IOException;
 
+    /**
+     * Force any pages written by {@link #writePage} out to durable storage.
+     * Files that write synchronously need not override this.
+     *
+     * @throws IOException if the force fails
+     */
+    public default void force() throws IOException {
+    }
+
+    /**
+     * Releases what the file holds open, e.g. file descriptors, once it
+     * left the catalog. Files that hold nothing open need not override
+     * this.
+     *
+     * @throws IOException if closing fails
+     */
+    public default void close() throws IOException {
+    }
+
     /**
      * Inserts the specified tuple to the file on behalf of transaction.
      * This method will acquire a lock on the affected pages of the file, and
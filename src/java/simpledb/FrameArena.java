@@ -0,0 +1,164 @@
+package simpledb;
+
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * FrameArena is a set of page-sized frames carved out of a few large direct
+ * ByteBuffers allocated up front. BufferPool reads pages straight into
+ * free frames when it runs off-heap, so the images of resident pages live
+ * outside the Java heap: the garbage collector never copies or scans them,
+ * however large the pool is, and pool memory is allocated once instead of a
+ * page at a time.
+ * <p>
+ * Frames are addressed by index, from 0 to {@link #capacity()} - 1. The
+ * arena can grow, but never gives memory back: direct buffers are only
+ * freed once nothing refers to them.
+ *
+ * @see BufferPool#BufferPool(int, ReplacementPolicy, boolean)
+ * @Threadsafe
+ */
+public class FrameArena {
+
+    /** Largest direct buffer allocated for frames. */
+    private static final int SEGMENT_BYTES = 1 << 30;
+
+    private final int pageSize;
+    private final int framesPerSegment;
+    /** Buffers holding the frames, and the index of the first frame in each. */
+    private final ArrayList<ByteBuffer> segments = new ArrayList<>();
+    private final ArrayList<Integer> segmentStarts = new ArrayList<>();
+    private int capacity;
+
+    /** Stack of free frame indexes; free[0..numFree) are valid. */
+    private int[] free;
+    private int numFree;
+    /** The frames handed out by allocate and not released since. */
+    private final BitSet inUse = new BitSet();
+    /** The page that last used each free frame, if released with one. */
+    private WeakReference<?>[] occupants = new WeakReference<?>[0];
+
+    /**
+     * Allocates an arena of the specified number of frames.
+     *
+     * @param numFrames the number of frames
+     * @param pageSize the size in bytes of each frame
+     */
+    public FrameArena(int numFrames, int pageSize) {
+        this.pageSize = pageSize;
+        this.framesPerSegment = Math.max(1, SEGMENT_BYTES / pageSize);
+        this.free = new int[0];
+        grow(numFrames);
+    }
+
+    /**
+     * Adds frames to the arena until it has at least the specified number.
+     */
+    public synchronized void grow(int numFrames) {
+        if (numFrames <= capacity) {
+            return;
+        }
+        for (int start = capacity; start < numFrames; start += framesPerSegment) {
+            int frames = Math.min(framesPerSegment, numFrames - start);
+            segmentStarts.add(start);
+            segments.add(ByteBuffer.allocateDirect(frames * pageSize));
+        }
+        int[] grown = new int[numFrames];
+        // new frames go below the free ones, so low frames are handed out first
+        int added = numFrames - capacity;
+        for (int i = 0; i < added; i++) {
+            grown[i] = numFrames - 1 - i;
+        }
+        System.arraycopy(free, 0, grown, added, numFree);
+        free = grown;
+        occupants = Arrays.copyOf(occupants, numFrames);
+        numFree += added;
+        capacity = numFrames;
+    }
+
+    /** Returns the size in bytes of each frame. */
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /** Returns the number of frames in this arena. */
+    public synchronized int capacity() {
+        return capacity;
+    }
+
+    /** Returns the number of frames not in use. */
+    public synchronized int numFree() {
+        return numFree;
+    }
+
+    /**
+     * Takes a free frame.
+     *
+     * @return the index of the frame, or -1 if every frame is in use
+     */
+    public synchronized int allocate() {
+        if (numFree == 0) {
+            return -1;
+        }
+        int frame = free[--numFree];
+        inUse.set(frame);
+        return frame;
+    }
+
+    /**
+     * Returns a frame taken with {@link #allocate} to the arena.
+     *
+     * @throws IllegalArgumentException if the frame is not in use, e.g.
+     *         because it was released already
+     */
+    public synchronized void release(int frame) {
+        if (frame < 0 || frame >= capacity || !inUse.get(frame)) {
+            throw new IllegalArgumentException("frame " + frame + " is not in use");
+        }
+        inUse.clear(frame);
+        free[numFree++] = frame;
+    }
+
+    /**
+     * Returns a frame to the arena like {@link #release(int)}, remembering
+     * the page that used it, which may still read from it. The page is only
+     * weakly referenced: if it is garbage by the time the frame is taken
+     * again, nothing needs to be moved out of the frame.
+     */
+    public synchronized void release(int frame, Object occupant) {
+        release(frame);
+        occupants[frame] = new WeakReference<>(occupant);
+    }
+
+    /**
+     * Returns the page a frame just taken with {@link #allocate} was
+     * released with, if it is still referenced elsewhere, and forgets it.
+     *
+     * @return the page, which must stop using the frame before it is
+     *         written, or null
+     */
+    public synchronized Object takeOccupant(int frame) {
+        WeakReference<?> occupant = occupants[frame];
+        occupants[frame] = null;
+        return occupant == null ? null : occupant.get();
+    }
+
+    /**
+     * Returns a buffer covering exactly the specified frame, with its
+     * position at 0 and its limit at the page size.
+     */
+    public synchronized ByteBuffer frame(int frame) {
+        int i = segmentStarts.size() - 1;
+        while (segmentStarts.get(i) > frame) {
+            i--;
+        }
+        ByteBuffer segment = segments.get(i).duplicate();
+        int offset = (frame - segmentStarts.get(i)) * pageSize;
+        segment.limit(offset + pageSize);
+        segment.position(offset);
+        return segment.slice();
+    }
+}
@@ -0,0 +1,92 @@
+package simpledb;
+
+import java.io.*;
+import java.util.BitSet;
+
+/**
+ * FreeSpaceMap records which pages of a HeapFile have at least one empty
+ * slot, so that inserts can go straight to a page with room instead of
+ * scanning (and locking) every page of the file.
+ * <p>
+ * The map is only a hint. Pages it has never seen are assumed to have
+ * room, and callers must still check the page itself and call
+ * {@link #update} with what they found. The map is saved next to the heap
+ * file; a saved map whose recorded file length does not match the heap
+ * file (e.g. after a crash) is ignored.
+ *
+ * @Threadsafe
+ */
+public class FreeSpaceMap {
+
+    private static final int MAGIC = 0x46534d31; // "FSM1"
+
+    /** Bit i is set if page i is known to be full. */
+    private final BitSet full = new BitSet();
+    private final File file;
+    private boolean dirty = false;
+
+    /**
+     * Creates a free space map stored in the specified file, loading its
+     * contents if the file exists and matches the heap file.
+     *
+     * @param file the file this map is saved to
+     * @param tableLength the current length in bytes of the heap file
+     */
+    public FreeSpaceMap(File file, long tableLength) {
+        this.file = file;
+        if (!file.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readLong() != tableLength) {
+                return;
+            }
+            byte[] bits = new byte[in.readInt()];
+            in.readFully(bits);
+            full.or(BitSet.valueOf(bits));
+        } catch (IOException e) {
+            // a damaged map is the same as no map
+            full.clear();
+        }
+    }
+
+    /**
+     * Returns the first page at or after from, and before numPages, that may
+     * have an empty slot.
+     *
+     * @return the page number, or -1 if every such page is known to be full
+     */
+    public synchronized int nextPageWithRoom(int from, int numPages) {
+        int pageNo = full.nextClearBit(from);
+        return pageNo < numPages ? pageNo : -1;
+    }
+
+    /** Records whether the specified page has at least one empty slot. */
+    public synchronized void update(int pageNo, boolean hasRoom) {
+        if (full.get(pageNo) == hasRoom) {
+            full.set(pageNo, !hasRoom);
+            dirty = true;
+        }
+    }
+
+    /**
+     * Saves the map if it changed since it was loaded or last saved.
+     *
+     * @param tableLength the length of the heap file the map describes
+     */
+    public synchronized void save(long tableLength) throws IOException {
+        if (!dirty) {
+            return;
+        }
+        byte[] bits = full.toByteArray();
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeLong(tableLength);
+            out.writeInt(bits.length);
+            out.write(bits);
+        }
+        dirty = false;
+    }
+}
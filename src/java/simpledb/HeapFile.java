@@ -1,7 +1,12 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * HeapFile is an implementation of a DbFile that stores a collection of tuples
@@ -18,6 +23,41 @@ public class HeapFile implements DbFile {
     private File f;
     private TupleDesc td;
 
+    /**
+     * Long-lived channel used for all page I/O. Reads and writes are
+     * positional, so concurrent callers never share a seek pointer.
+     * Opened lazily by {@link #getChannel}.
+     */
+    private volatile FileChannel channel;
+    /** True if pages were written since the last call to {@link #force}. */
+    private volatile boolean unforced = false;
+
+    /** Size of each read-only mapping used in memory-mapped mode. */
+    private static final int MAP_SEGMENT_BYTES = 64 * 1024 * 1024;
+
+    private volatile boolean memoryMapped = false;
+    /**
+     * Read-only mappings of the file in memory-mapped mode; segment i covers
+     * pages [i * pagesPerSegment, (i+1) * pagesPerSegment). Protected by
+     * itself.
+     */
+    private final ArrayList<MappedByteBuffer> segments = new ArrayList<>();
+    /** Page size the current segments were mapped with. */
+    private int mappedPageSize;
+
+    /** Pages with room for inserts; loaded by {@link #getFreeSpaceMap}. */
+    private volatile FreeSpaceMap freeSpace;
+    /**
+     * Pages each running transaction deleted tuples from. Their slots are
+     * only free for that transaction until it commits, so they are not in
+     * the free space map yet.
+     */
+    private final ConcurrentHashMap<TransactionId, Set<Integer>> freedPages = new ConcurrentHashMap<>();
+    /** pageLSNs of the pages on disk; loaded by {@link #getPageLsnMap}. */
+    private volatile PageLsnMap pageLsns;
+    /** Serializes {@link #force}, so pageLSNs are saved after their pages. */
+    private final Object forceLock = new Object();
+
     /**
      * Constructs a heap file backed by the specified file.
      * 
@@ -41,6 +81,41 @@ public class HeapFile implements DbFile {
         return this.f;
     }
 
+    /** Returns the file the free space map of the specified heap file is kept in. */
+    private static File freeSpaceFile(File f) {
+        return new File(f.getPath() + ".fsm");
+    }
+
+    /** Returns the file the pageLSN map of the specified heap file is kept in. */
+    private static File pageLsnFile(File f) {
+        return new File(f.getPath() + ".lsn");
+    }
+
+    /**
+     * Returns the specified heap file together with the maps kept next to
+     * it, which belong to it and go away with it.
+     */
+    private static File[] withMaps(File f) {
+        return new File[] { f, freeSpaceFile(f), pageLsnFile(f) };
+    }
+
+    /**
+     * Requests that the specified heap file, and the maps kept next to it,
+     * be deleted when the virtual machine exits, as for a temporary table.
+     */
+    public static void deleteOnExit(File f) {
+        for (File file : withMaps(f)) {
+            file.deleteOnExit();
+        }
+    }
+
+    /** Deletes the specified heap file and the maps kept next to it. */
+    public static void delete(File f) {
+        for (File file : withMaps(f)) {
+            file.delete();
+        }
+    }
+
     /**
      * Returns an ID uniquely identifying this HeapFile. Implementation note:
      * you will need to generate this tableid somewhere to ensure that each
@@ -65,38 +140,271 @@ public class HeapFile implements DbFile {
         return this.td;
     }
 
+    /**
+     * Returns the channel backing this HeapFile, opening it on first use.
+     */
+    private FileChannel getChannel() throws IOException {
+        FileChannel ch = channel;
+        if (ch == null) {
+            synchronized (this) {
+                ch = channel;
+                if (ch == null) {
+                    ch = FileChannel.open(f.toPath(), StandardOpenOption.READ,
+                            StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+                    channel = ch;
+                }
+            }
+        }
+        return ch;
+    }
+
+    /**
+     * Closes the channel of this file and drops its mappings. A closed file
+     * can still be used; the channel is opened again on the next access.
+     */
+    public void close() throws IOException {
+        synchronized (segments) {
+            segments.clear();
+        }
+        synchronized (this) {
+            FileChannel ch = channel;
+            channel = null;
+            if (ch != null) {
+                ch.close();
+            }
+        }
+    }
+
+    /** Returns true if the channel of this file is open. */
+    boolean isOpen() {
+        return channel != null;
+    }
+
+    /**
+     * Enables or disables memory-mapped reads. When enabled, readPage copies
+     * pages out of read-only mappings of the file instead of issuing a read
+     * system call per page, and the pages are shared with other processes
+     * through the OS page cache. Meant for read-mostly tables; writes still go
+     * through the channel and are visible through the mappings.
+     */
+    public void setMemoryMapped(boolean memoryMapped) {
+        this.memoryMapped = memoryMapped;
+        if (!memoryMapped) {
+            synchronized (segments) {
+                segments.clear();
+            }
+        }
+    }
+
+    /** Returns true if this file is in memory-mapped mode. */
+    public boolean isMemoryMapped() {
+        return memoryMapped;
+    }
+
+    /**
+     * Returns the mapping that covers the given page, mapping (or re-mapping,
+     * if the file grew since it was mapped) the segment as needed.
+     *
+     * @return the segment, or null if the page lies past the end of the file
+     */
+    private MappedByteBuffer mappedSegment(int pageNo) throws IOException {
+        int pageSize = BufferPool.getPageSize();
+        int pagesPerSegment = Math.max(1, MAP_SEGMENT_BYTES / pageSize);
+        int index = pageNo / pagesPerSegment;
+        long segmentStart = (long) index * pagesPerSegment * pageSize;
+        long needed = (long) (pageNo % pagesPerSegment + 1) * pageSize;
+
+        synchronized (segments) {
+            if (mappedPageSize != pageSize) {
+                segments.clear();
+                mappedPageSize = pageSize;
+            }
+            MappedByteBuffer segment = index < segments.size() ? segments.get(index) : null;
+            if (segment == null || segment.capacity() < needed) {
+                FileChannel ch = getChannel();
+                long fileLength = ch.size();
+                if (segmentStart + needed > fileLength) {
+                    return null;
+                }
+                long length = Math.min((long) pagesPerSegment * pageSize, fileLength - segmentStart);
+                segment = ch.map(FileChannel.MapMode.READ_ONLY, segmentStart, length);
+                while (segments.size() <= index) {
+                    segments.add(null);
+                }
+                segments.set(index, segment);
+            }
+            return segment;
+        }
+    }
+
     // see DbFile.java for javadocs
     public Page readPage(PageId pid) {
         // some code goes here
-        int startOffset = pid.getPageNumber() * BufferPool.getPageSize();
-        byte[] payroll = new byte[BufferPool.getPageSize()];
+        return readPage(pid, ByteBuffer.allocate(BufferPool.getPageSize()), -1);
+    }
+
+    /**
+     * Reads the specified page into the specified buffer and returns a page
+     * that uses the buffer as its image.
+     *
+     * @param image a buffer of exactly one page, positioned at 0
+     * @param frame the frame of the buffer pool's arena image belongs to,
+     *        or -1 if it is a heap buffer
+     * @see FrameArena
+     */
+    HeapPage readPage(PageId pid, ByteBuffer image, int frame) {
+        long startOffset = (long) pid.getPageNumber() * BufferPool.getPageSize();
+        int pageSize = image.capacity();
 
         try {
-            RandomAccessFile access = new RandomAccessFile(f, "r");
-            access.seek(startOffset);
-            access.read(payroll);
-            access.close();
-            HeapPageId hpi = new HeapPageId(pid.getTableId(), pid.getPageNumber());
-            return new HeapPage(hpi, payroll);
+            ByteBuffer buf = image.duplicate();
+            buf.clear();
+            MappedByteBuffer segment = memoryMapped ? mappedSegment(pid.getPageNumber()) : null;
+            if (segment != null) {
+                int pagesPerSegment = Math.max(1, MAP_SEGMENT_BYTES / pageSize);
+                ByteBuffer src = segment.duplicate();
+                int offset = (pid.getPageNumber() % pagesPerSegment) * pageSize;
+                src.limit(offset + pageSize);
+                src.position(offset);
+                buf.put(src);
+            } else {
+                FileChannel ch = getChannel();
+                while (buf.hasRemaining()) {
+                    if (ch.read(buf, startOffset + buf.position()) < 0) break;
+                }
+                // bytes past the end of the file read as zeroes, i.e. an empty page
+                while (buf.hasRemaining()) {
+                    buf.put((byte) 0);
+                }
+            }
+            return pageOf(pid, image, frame);
         } catch (Exception e) {
             throw new NoSuchElementException(e.toString());
         }
     }
 
+    /**
+     * Returns a page that uses the specified buffer, which already holds
+     * the image of the page as read from disk, e.g. by readPages. The page
+     * gets its pageLSN, and the free space map learns whether it has room,
+     * as for a page read with readPage.
+     *
+     * @param image a buffer of exactly one page, positioned at 0
+     * @param frame the frame of the buffer pool's arena image belongs to,
+     *        or -1 if it is a heap buffer
+     */
+    HeapPage pageOf(PageId pid, ByteBuffer image, int frame) {
+        HeapPageId hpi = new HeapPageId(pid.getTableId(), pid.getPageNumber());
+        HeapPage page = new HeapPage(hpi, image, frame);
+        page.setLsn(getPageLsnMap().get(pid.getPageNumber()));
+        getFreeSpaceMap().update(pid.getPageNumber(), page.getNumEmptySlots() > 0);
+        return page;
+    }
+
+    /**
+     * Reads consecutive pages with a single read, filling the specified
+     * buffer with pages starting at firstPage. Bytes past the end of the
+     * file read as zeroes.
+     *
+     * @param dst a buffer whose remaining space is a whole number of pages
+     */
+    void readPages(int firstPage, ByteBuffer dst) throws IOException {
+        long startOffset = (long) firstPage * BufferPool.getPageSize();
+        ByteBuffer buf = dst.duplicate();
+        int start = buf.position();
+        FileChannel ch = getChannel();
+        while (buf.hasRemaining()) {
+            if (ch.read(buf, startOffset + buf.position() - start) < 0) break;
+        }
+        while (buf.hasRemaining()) {
+            buf.put((byte) 0);
+        }
+    }
+
     // see DbFile.java for javadocs
     public void writePage(Page page) throws IOException {
         // some code goes here
         // not necessary for lab1
-        int startOffset = page.getId().getPageNumber() * BufferPool.getPageSize();
+        long startOffset = (long) page.getId().getPageNumber() * BufferPool.getPageSize();
+
+        ByteBuffer buf = ByteBuffer.wrap(page.getPageData());
+        FileChannel ch = getChannel();
+        while (buf.hasRemaining()) {
+            ch.write(buf, startOffset + buf.position());
+        }
+        unforced = true;
+        if (page instanceof HeapPage) {
+            getPageLsnMap().set(page.getId().getPageNumber(), ((HeapPage) page).getLsn());
+        }
+    }
+
+    /**
+     * Forces pages written since the last call out to disk. Writes are not
+     * synchronous, so callers that need them to be durable (commit,
+     * checkpoint, rollback) must call this afterwards.
+     * <p>
+     * The pageLSNs of the pages are saved once the pages are on disk.
+     */
+    public void force() throws IOException {
+        synchronized (forceLock) {
+            PageLsnMap lsns = pageLsns;
+            long[] snapshot = lsns == null ? null : lsns.snapshot();
+            if (unforced) {
+                unforced = false;
+                getChannel().force(true);
+            }
+            if (freeSpace != null) {
+                freeSpace.save(f.length());
+            }
+            if (snapshot != null) {
+                lsns.save(snapshot);
+            }
+        }
+    }
+
+    /**
+     * Returns the pageLSN of the specified page as last written to disk, or
+     * {@link PageLsnMap#NO_LSN}.
+     */
+    long getPageLsn(int pageNo) {
+        return getPageLsnMap().get(pageNo);
+    }
+
+    /**
+     * Returns the pageLSN map of this file, loading it from the file next to
+     * the heap file on first use, or again if the log changed since.
+     */
+    private PageLsnMap getPageLsnMap() {
+        long logId = Database.getLogFile().getLogId();
+        PageLsnMap lsns = pageLsns;
+        if (lsns == null || lsns.getLogId() != logId) {
+            synchronized (this) {
+                lsns = pageLsns;
+                if (lsns == null || lsns.getLogId() != logId) {
+                    lsns = new PageLsnMap(pageLsnFile(f), logId);
+                    pageLsns = lsns;
+                }
+            }
+        }
+        return lsns;
+    }
 
-        try{
-            RandomAccessFile access = new RandomAccessFile(f, "rws");
-            access.seek(startOffset);
-            access.write(page.getPageData());
-            access.close();
-        } catch (Exception e){
-            throw new IOException(e.toString());
+    /**
+     * Returns the free space map of this file, loading it from the file
+     * next to the heap file on first use.
+     */
+    FreeSpaceMap getFreeSpaceMap() {
+        FreeSpaceMap fsm = freeSpace;
+        if (fsm == null) {
+            synchronized (this) {
+                fsm = freeSpace;
+                if (fsm == null) {
+                    fsm = new FreeSpaceMap(freeSpaceFile(f), f.length());
+                    freeSpace = fsm;
+                }
+            }
         }
+        return fsm;
     }
 
     /**
@@ -112,58 +420,142 @@ public class HeapFile implements DbFile {
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
-        HeapPage targetPage = null;
-        int pageId = 0;
-        //System.out.println(numPages());
-        while(pageId < numPages()){
-            HeapPage currentPage = (HeapPage) Database.getBufferPool().getPage(
-                    tid, new HeapPageId(getId(), pageId), Permissions.READ_WRITE);
-            if (currentPage.getNumEmptySlots() > 0) {
-                targetPage = currentPage;
-                break;
-            }
-            pageId++;
-        }
-        if (targetPage == null){
-            targetPage = new HeapPage(new HeapPageId(getId(), pageId), new byte[BufferPool.getPageSize()]);
-            targetPage.insertTuple(t);
-            writePage(targetPage);
-            ArrayList<Page> res = new ArrayList<>();
-            res.add(targetPage);
-            return res;
-        } else {
-            targetPage.insertTuple(t);
-            ArrayList<Page> res = new ArrayList<>();
-            res.add(targetPage);
-            return res;
+        BufferPool bufferPool = Database.getBufferPool();
+        FreeSpaceMap fsm = getFreeSpaceMap();
+        Set<Integer> freed = freedPages.get(tid);
+        int from = 0;
+        while (true) {
+            // slots this transaction freed first; it holds their pages
+            int pageNo;
+            boolean own = freed != null && !freed.isEmpty();
+            if (own) {
+                pageNo = freed.iterator().next();
+            } else {
+                pageNo = fsm.nextPageWithRoom(from, numPages());
+                if (pageNo < 0) {
+                    pageNo = appendEmptyPage();
+                }
+                from = pageNo + 1;
+            }
+            HeapPageId pid = new HeapPageId(getId(), pageNo);
+            boolean locked = bufferPool.holdsLock(tid, pid);
+            HeapPage page = (HeapPage) bufferPool.pinPage(tid, pid, Permissions.READ_WRITE);
+            try {
+                if (page.getNumEmptySlots() > 0) {
+                    page.insertTuple(t);
+                    if (!own) {
+                        fsm.update(pageNo, page.getNumEmptySlots() > 0);
+                    } else if (page.getNumEmptySlots() == 0) {
+                        freed.remove(pageNo);
+                    }
+                    ArrayList<Page> res = new ArrayList<>();
+                    res.add(page);
+                    return res;
+                }
+            } finally {
+                bufferPool.unpinPage(tid, pid);
+            }
+            if (own) {
+                freed.remove(pageNo);
+                continue;
+            }
+            // the map was stale, or another transaction filled the page
+            fsm.update(pageNo, false);
+            if (!locked) {
+                // nothing was read from or written to the page
+                bufferPool.releasePage(tid, pid);
+            }
         }
     }
 
+    /**
+     * Extends the file by one empty page.
+     *
+     * @return the page number of the new page
+     */
+    private synchronized int appendEmptyPage() throws IOException {
+        int pageNo = numPages();
+        HeapPageId pid = new HeapPageId(getId(), pageNo);
+        writePage(new HeapPage(pid, HeapPage.createEmptyPageData()));
+        getFreeSpaceMap().update(pageNo, true);
+        return pageNo;
+    }
+
     // see DbFile.java for javadocs
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
-        HeapPage targetPage = (HeapPage) Database.getBufferPool().getPage(
-                tid, t.getRecordId().getPageId(), Permissions.READ_WRITE);
-        targetPage.deleteTuple(t);
+        BufferPool bufferPool = Database.getBufferPool();
+        PageId pid = t.getRecordId().getPageId();
+        HeapPage targetPage = (HeapPage) bufferPool.pinPage(tid, pid, Permissions.READ_WRITE);
+        try {
+            targetPage.deleteTuple(t);
+        } finally {
+            bufferPool.unpinPage(tid, pid);
+        }
+        // other transactions see the slot once tid commits; see
+        // transactionComplete
+        Set<Integer> freed = freedPages.get(tid);
+        if (freed == null) {
+            Set<Integer> created = ConcurrentHashMap.newKeySet();
+            freed = freedPages.putIfAbsent(tid, created);
+            if (freed == null) {
+                freed = created;
+            }
+        }
+        freed.add(pid.getPageNumber());
         ArrayList<Page> res = new ArrayList<>();
         res.add(targetPage);
         return res;
     }
 
+    /**
+     * Brings the free space map up to date for a page the specified
+     * transaction changed, now that it ended. At commit the map records
+     * whether the page has room, which frees the slots the transaction
+     * deleted for everyone. At abort the page is recorded as maybe having
+     * room, since rolling back inserts frees their slots; inserts correct
+     * the map if it is wrong, as they do for pages that are not in the
+     * buffer pool any more.
+     *
+     * @param page the page as the transaction left it, or null if it is
+     *        not in the buffer pool
+     */
+    void transactionComplete(TransactionId tid, int pageNo, HeapPage page, boolean commit) {
+        freedPages.remove(tid);
+        getFreeSpaceMap().update(pageNo, page == null || !commit || page.getNumEmptySlots() > 0);
+    }
+
     // see DbFile.java for javadocs
     public DbFileIterator iterator(TransactionId tid) {
+        return iterator(tid, null);
+    }
+
+    /**
+     * Returns an iterator over all the tuples of this file that reads pages
+     * which are not already in the buffer pool into the specified ring, so
+     * that scanning a large file does not evict the rest of the pool.
+     *
+     * @param tid the transaction the scan runs as
+     * @param ring the ring of the scan, or null to read through the shared
+     *        pool
+     * @see BufferRing
+     */
+    public DbFileIterator iterator(TransactionId tid, BufferRing ring) {
         // some code goes here
         DbFileIterator iterator = new AbstractDbFileIterator() {
             int currentPageNumber = 0;
             HeapPage currentPage;
+            /** Pool currentPage is pinned in. */
+            BufferPool pool;
             Iterator<Tuple> currentIter;
             Boolean opened = false;
 
             @Override
             protected Tuple readNext() throws DbException, TransactionAbortedException {
                 if (currentPage == null) {
+                    // the pool only has to keep the page being read
                     currentPage = getNextPage();
                     if (currentPage != null){
                         currentIter = currentPage.iterator();
@@ -174,7 +566,7 @@ public class HeapFile implements DbFile {
                 if (currentIter.hasNext()){
                     return currentIter.next();
                 } else {
-                    currentPage = null;
+                    unpinCurrentPage();
                     return readNext();
                 }
             }
@@ -186,24 +578,33 @@ public class HeapFile implements DbFile {
 
             @Override
             public void rewind() throws DbException, TransactionAbortedException {
+                unpinCurrentPage();
                 currentPageNumber = 0;
-                currentPage = null;
             }
 
+            /** Returns the next page, pinned so it stays in the pool while it is read. */
             private HeapPage getNextPage() throws TransactionAbortedException, DbException {
                 if (currentPageNumber < numPages() && opened) {
                     currentPageNumber += 1;
-                    return (HeapPage) Database.getBufferPool().getPage(
-                            tid, new HeapPageId(getId(), currentPageNumber-1), Permissions.READ_ONLY);
+                    pool = Database.getBufferPool();
+                    return (HeapPage) pool.pinPage(
+                            tid, new HeapPageId(getId(), currentPageNumber-1), Permissions.READ_ONLY, ring);
                 }
                 return null;
             }
 
+            private void unpinCurrentPage() {
+                if (currentPage != null) {
+                    pool.unpinPage(tid, currentPage.getId());
+                    currentPage = null;
+                }
+            }
+
             @Override
             public void close() {
                 super.close();
                 opened = false;
-                currentPage = null;
+                unpinCurrentPage();
                 currentIter = null;
             }
         };
@@ -2,6 +2,7 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
@@ -15,14 +16,40 @@ public class HeapPage implements Page {
 
     final HeapPageId pid;
     final TupleDesc td;
-    final byte header[];
-    final Tuple tuples[];
     final int numSlots;
+    final int headerSize;
+    final int tupleSize;
 
+    /**
+     * The page image. Header bits and tuple slots are read from and written
+     * to this buffer directly, using absolute gets and puts only. The image
+     * is either on the heap or in a frame of the buffer pool's
+     * {@link FrameArena}; see {@link #detach}.
+     */
+    volatile ByteBuffer data;
+    /** Frame of the arena holding data, or -1 if data is on the heap. Protected by this. */
+    private int frame;
+    /** Whether the page gave its frame back to the arena; see leaveFrame. Protected by this. */
+    private boolean leftFrame;
+    /**
+     * Tuples handed out for each slot, allocated on first use. A cached
+     * tuple decodes its fields from data lazily, so it is materialized
+     * before its slot is overwritten. Protected by this.
+     */
+    private Tuple tuples[];
+
+    /**
+     * Page image before the current transaction changed it, or null if the
+     * page has not changed since it was read or last committed. Captured by
+     * {@link #captureBeforeImage} on the first change, so read-only pages
+     * never copy their image. Protected by oldDataLock.
+     */
     private byte[] oldData;
-    private final Byte oldDataLock=new Byte((byte)0);
+    private final Object oldDataLock = new Object();
     private boolean dirty;
     private TransactionId dirtyID;
+    /** LSN of the last log record whose change this page holds. */
+    private volatile long lsn = PageLsnMap.NO_LSN;
 
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
@@ -36,32 +63,32 @@ public class HeapPage implements Page {
      * <p>
      *      ceiling(no. tuple slots / 8)
      * <p>
+     * The bytes are copied into the page; tuples are not decoded until
+     * they are read, and the before image is not copied until the page is
+     * first changed.
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
      * @see BufferPool#getPageSize()
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, ByteBuffer.wrap(Arrays.copyOf(data, BufferPool.getPageSize())), -1);
+    }
+
+    /**
+     * Create a HeapPage that uses the specified buffer, which holds exactly
+     * one page, as its image without copying it.
+     *
+     * @param frame the frame of the buffer pool's arena the buffer belongs
+     *        to, or -1 if it is an ordinary heap buffer
+     */
+    HeapPage(HeapPageId id, ByteBuffer image, int frame) {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
-
-        // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-        
-        tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
-        }
-        dis.close();
-
-        setBeforeImage();
+        this.headerSize = getHeaderSize();
+        this.tupleSize = td.getSize();
+        this.data = image;
+        this.frame = frame;
     }
 
     /** Retrieve the number of tuples on this page.
@@ -92,6 +119,10 @@ public class HeapPage implements Page {
             {
                 oldDataRef = oldData;
             }
+            if (oldDataRef == null) {
+                // unchanged since the last before image
+                oldDataRef = getPageData();
+            }
             return new HeapPage(pid,oldDataRef);
         } catch (IOException e) {
             e.printStackTrace();
@@ -104,7 +135,22 @@ public class HeapPage implements Page {
     public void setBeforeImage() {
         synchronized(oldDataLock)
         {
-        oldData = getPageData().clone();
+        // the current contents become the before image; they are copied
+        // again only if the page changes
+        oldData = null;
+        }
+    }
+
+    /**
+     * Copies the current contents into the before image unless it was
+     * already captured. Must be called before the page image changes.
+     */
+    private void captureBeforeImage() {
+        synchronized(oldDataLock)
+        {
+            if (oldData == null) {
+                oldData = getPageData();
+            }
         }
     }
 
@@ -117,36 +163,74 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Suck up tuples from the source file.
+     * Returns the tuple stored in the given (used) slot, creating a lazily
+     * decoded tuple on first access.
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
+    private synchronized Tuple getTuple(int slotId) {
+        if (tuples == null) {
+            tuples = new Tuple[numSlots];
+        }
+        Tuple t = tuples[slotId];
+        if (t == null) {
+            t = new Tuple(td, data, slotOffset(slotId), this);
+            t.setRecordId(new RecordId(pid, slotId));
+            tuples[slotId] = t;
         }
+        return t;
+    }
 
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
-        try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
+    /**
+     * Detaches the cached tuple of a slot, if any, from the page image so
+     * the slot can be overwritten.
+     */
+    private synchronized void releaseTuple(int slotId) {
+        if (tuples != null && tuples[slotId] != null) {
+            tuples[slotId].materialize();
+            tuples[slotId] = null;
+        }
+    }
+
+    /**
+     * Gives up the arena frame of a page that left the buffer pool. The page
+     * keeps its image in the frame until {@link #detach} moves it out, which
+     * the pool only does if the page, or a tuple read from it, is still
+     * referenced when the frame is taken for another page.
+     *
+     * @return the frame of the page, or -1 if it is not in one or gave it
+     *         up already
+     */
+    synchronized int leaveFrame() {
+        if (frame < 0 || leftFrame) {
+            return -1;
+        }
+        leftFrame = true;
+        return frame;
+    }
+
+    /**
+     * Moves the page image out of its arena frame onto the heap, before the
+     * frame is given to another page. Tuples already handed out are
+     * materialized, since they would otherwise decode their fields from
+     * the frame later.
+     */
+    synchronized void detach() {
+        if (frame < 0) {
+            return;
+        }
+        if (tuples != null) {
+            for (Tuple t : tuples) {
+                if (t != null) {
+                    t.materialize();
+                }
             }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
         }
-        return t;
+        data = ByteBuffer.wrap(getPageData());
+        frame = -1;
+    }
+
+    /** Returns the offset in the page image of the first byte of a slot. */
+    private int slotOffset(int slotId) {
+        return headerSize + slotId * tupleSize;
     }
 
     /**
@@ -161,64 +245,11 @@ public class HeapPage implements Page {
      * @return A byte array correspond to the bytes of this page.
      */
     public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        // create the header of the page
-        for (int i=0; i<header.length; i++) {
-            try {
-                dos.writeByte(header[i]);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
-
-        // create the tuples
-        for (int i=0; i<tuples.length; i++) {
-
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
-                continue;
-            }
-
-            // non-empty slot
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-                
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
-
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        return baos.toByteArray();
+        byte[] image = new byte[BufferPool.getPageSize()];
+        ByteBuffer src = data.duplicate();
+        src.clear();
+        src.get(image);
+        return image;
     }
 
     /**
@@ -235,6 +266,34 @@ public class HeapPage implements Page {
         return new byte[len]; //all 0
     }
 
+    /**
+     * Writes HeapPages to the log as their table id, page number and image;
+     * registered with {@link PageCodecs} as {@link PageCodecs#HEAP_PAGE}.
+     */
+    static final PageCodec CODEC = new PageCodec() {
+        public int size(Page p) {
+            return 2 * 4 + BufferPool.getPageSize();
+        }
+
+        public void write(Page p, DataOutput out) throws IOException {
+            HeapPageId id = (HeapPageId) p.getId();
+            out.writeInt(id.getTableId());
+            out.writeInt(id.getPageNumber());
+            out.write(p.getPageData());
+        }
+
+        public Page read(DataInput in, int size) throws IOException {
+            HeapPageId id = new HeapPageId(in.readInt(), in.readInt());
+            byte[] image = new byte[size - 2 * 4];
+            in.readFully(image);
+            if (image.length != BufferPool.getPageSize()) {
+                return new HeapPage(id, image);
+            }
+            // the image is not shared, so the page can use it without a copy
+            return new HeapPage(id, ByteBuffer.wrap(image), -1);
+        }
+    };
+
     /**
      * Delete the specified tuple from the page; the corresponding header bit should be updated to reflect
      *   that it is no longer stored on any page.
@@ -256,7 +315,12 @@ public class HeapPage implements Page {
             throw new DbException("This tuple is deleted.");
         }
 
-        this.tuples[tupno] = null;
+        captureBeforeImage();
+        releaseTuple(tupno);
+        int offset = slotOffset(tupno);
+        for (int j = 0; j < tupleSize; j++) {
+            data.put(offset + j, (byte) 0);
+        }
         markSlotUsed(tupno, false);
     }
 
@@ -281,8 +345,14 @@ public class HeapPage implements Page {
         while(isSlotUsed(i)){
             i++;
         }
-        this.tuples[i] = t;
-        this.tuples[i].setRecordId(new RecordId(this.pid, i));
+        captureBeforeImage();
+        releaseTuple(i);
+        int offset = slotOffset(i);
+        for (int j = 0; j < td.numFields(); j++) {
+            t.getField(j).serialize(data, offset);
+            offset += td.getFieldType(j).getLen();
+        }
+        t.setRecordId(new RecordId(this.pid, i));
         markSlotUsed(i, true);
     }
 
@@ -293,10 +363,26 @@ public class HeapPage implements Page {
     public void markDirty(boolean dirty, TransactionId tid) {
         // some code goes here
 	    // not necessary for lab1
+        if (dirty) {
+            captureBeforeImage();
+        }
         this.dirty = (dirty)? true:false;
         this.dirtyID = (this.dirty)? tid:null;
     }
 
+    /**
+     * Returns the pageLSN of this page: the LSN of the last log record
+     * whose change it holds, or {@link PageLsnMap#NO_LSN}.
+     */
+    public long getLsn() {
+        return lsn;
+    }
+
+    /** Sets the pageLSN of this page. */
+    public void setLsn(long lsn) {
+        this.lsn = lsn;
+    }
+
     /**
      * Returns the tid of the transaction that last dirtied this page, or null if the page is not dirty
      */
@@ -312,8 +398,8 @@ public class HeapPage implements Page {
     public int getNumEmptySlots() {
         // some code goes here
         int count = 0;
-        for (int i = 0; i < getNumTuples(); i++){
-            if (getBit(header[i/8], i%8) == 0){
+        for (int i = 0; i < numSlots; i++){
+            if (getBit(data.get(i/8), i%8) == 0){
                 count += 1;
             }
         }
@@ -324,7 +410,7 @@ public class HeapPage implements Page {
      * Returns true if associated slot on this page is filled.
      */
     public boolean isSlotUsed(int i) {
-        if (getBit(header[i/8], i%8) == 1){
+        if (getBit(data.get(i/8), i%8) == 1){
             return true;
         }
         return false;
@@ -335,10 +421,11 @@ public class HeapPage implements Page {
      */
     private void markSlotUsed(int i, boolean value) {
         // some code goes here
+        byte b = data.get(i/8);
         if (value == true){
-            this.header[i/8] =  (byte) (this.header[i/8] | (1 << i%8));
+            data.put(i/8, (byte) (b | (1 << i%8)));
         } else {
-            this.header[i/8] =  (byte) (this.header[i/8] & ~(1 << i%8));
+            data.put(i/8, (byte) (b & ~(1 << i%8)));
         }
     }
 
@@ -348,14 +435,37 @@ public class HeapPage implements Page {
      */
     public Iterator<Tuple> iterator() {
         // some code goes here
-        List<Tuple> nonEmptySlot = new LinkedList<>();
-        for (int i = 0; i < getNumTuples(); i++){
-            if (isSlotUsed(i)) {
-                nonEmptySlot.add(tuples[i]);
-            }
+        // Tuples inserted while iterating are not returned, matching a
+        // snapshot of the slots in use when the iterator was created.
+        final byte[] used = new byte[headerSize];
+        for (int i = 0; i < headerSize; i++) {
+            used[i] = data.get(i);
         }
-        //nonEmptySlot = Arrays.asList();
-        return nonEmptySlot.iterator();
+        return new Iterator<Tuple>() {
+            private int next = advance(0);
+
+            private int advance(int from) {
+                int i = from;
+                while (i < numSlots && (getBit(used[i/8], i%8) == 0 || !isSlotUsed(i))) {
+                    i++;
+                }
+                return i;
+            }
+
+            public boolean hasNext() {
+                next = advance(next);
+                return next < numSlots;
+            }
+
+            public Tuple next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Tuple t = getTuple(next);
+                next = advance(next + 1);
+                return t;
+            }
+        };
     }
 
     private int getBit(byte number, int position)
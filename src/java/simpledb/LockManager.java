@@ -1,156 +1,433 @@
 package simpledb;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 
 /**
  * LockManager manages the the lock/unlock when a thread is reading/writing
  * pages from/to disk.
+ * <p>
+ * The lock table is split into {@link #STRIPES} partitions by the hash of
+ * the page id, each with its own mutex, so that transactions locking
+ * different pages rarely contend. Each lock keeps a FIFO queue of the
+ * transactions waiting for it; a release grants the lock to the waiters at
+ * the head of the queue that are compatible with its remaining holders and
+ * wakes only those. A transaction upgrading its shared lock goes to the
+ * head of the queue.
+ * <p>
+ * A transaction that blocks looks for a cycle through itself in the
+ * graph of which transactions wait for which; any new cycle has to go
+ * through it. Of the transactions on the cycle, the one picked by the
+ * victim policy ({@link #VICTIM}) is aborted: its pending request fails.
+ * <p>
+ * Instead of detecting deadlocks, the lock manager can prevent them by
+ * {@link TransactionId#getTimestamp() age} ({@link #DEADLOCK}). With
+ * wait-die, a transaction may only wait for younger ones; otherwise its
+ * request fails. With wound-wait, a transaction blocked by younger ones
+ * wounds them and waits. A wounded transaction's pending request fails,
+ * and so does every later one, even for a lock it already holds. BufferPool
+ * asks for a lock on every page access, so a wounded transaction that is
+ * not waiting aborts at its next page access.
+ * Either way transactions only wait for ones on one side of them in age,
+ * so no cycle can form and there is no graph to search.
  */
 public class LockManager {
 
-    private ConcurrentHashMap<PageId, Lock> lockMap;
-    private ConcurrentHashMap<TransactionId, HashSet<Lock>> transactionLockList;
-    private ConcurrentHashMap<TransactionId, HashSet<TransactionId>> LockWaitList;
+    /**
+     * Number of partitions of the lock table. Read from the
+     * simpledb.LockManager.stripes system property; defaults to 64.
+     */
+    public static final int STRIPES = Integer.getInteger("simpledb.LockManager.stripes", 64);
+
+    /**
+     * Name of the policy that picks which transaction of a deadlock is
+     * aborted, read from the simpledb.LockManager.victim system property:
+     * "youngest" (the default), "fewest-locks" or "least-log", the
+     * transaction that has written the least log. Ties go to the youngest.
+     */
+    public static final String VICTIM = System.getProperty("simpledb.LockManager.victim", "youngest");
+
+    /**
+     * Name of how {@link #LockManager()} handles deadlocks, read from the
+     * simpledb.LockManager.deadlock system property: "detect" (the
+     * default), "wait-die" or "wound-wait".
+     */
+    public static final String DEADLOCK = System.getProperty("simpledb.LockManager.deadlock", "detect");
 
+    /** A partition of the lock table; its locks are protected by mutex. */
+    private static class Stripe {
+        final ReentrantLock mutex = new ReentrantLock();
+        final HashMap<PageId, Lock> locks = new HashMap<>();
+    }
+
+    /** A transaction waiting for a lock; protected by the mutex of its stripe. */
+    private static class Waiter {
+        final TransactionId tid;
+        final boolean exclusive;
+        final Stripe stripe;
+        final Condition granted;
+        boolean done;
+        /** Set when the transaction was picked as the victim of a deadlock, or wounded. */
+        boolean aborted;
+
+        Waiter(TransactionId tid, boolean exclusive, Stripe stripe) {
+            this.tid = tid;
+            this.exclusive = exclusive;
+            this.stripe = stripe;
+            this.granted = stripe.mutex.newCondition();
+        }
+    }
+
+    private final Stripe[] stripes;
+    private final ConcurrentHashMap<TransactionId, Set<Lock>> transactionLockList;
+    /** The transactions each blocked transaction waits for. */
+    private final ConcurrentHashMap<TransactionId, Set<TransactionId>> LockWaitList;
+    /** The request each blocked transaction waits on. */
+    private final ConcurrentHashMap<TransactionId, Waiter> waiters;
+    /** Transactions wounded by older ones, with wound-wait. */
+    private final Set<TransactionId> wounded = ConcurrentHashMap.newKeySet();
+    private final AtomicLong deadlocks = new AtomicLong();
+
+    private final String deadlockMode;
+    private volatile String victimPolicy = VICTIM;
 
     LockManager(){
-        lockMap = new ConcurrentHashMap<>();
+        this(STRIPES, DEADLOCK);
+    }
+
+    /**
+     * @param numStripes the number of partitions of the lock table
+     */
+    LockManager(int numStripes){
+        this(numStripes, DEADLOCK);
+    }
+
+    /**
+     * @param numStripes the number of partitions of the lock table
+     * @param deadlockMode how deadlocks are handled; see {@link #DEADLOCK}
+     * @throws IllegalArgumentException if the mode is unknown
+     */
+    LockManager(int numStripes, String deadlockMode){
+        if (!deadlockMode.equals("detect") && !deadlockMode.equals("wait-die")
+                && !deadlockMode.equals("wound-wait")) {
+            throw new IllegalArgumentException("unknown deadlock mode " + deadlockMode);
+        }
+        this.deadlockMode = deadlockMode;
+        stripes = new Stripe[Math.max(1, numStripes)];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe();
+        }
         transactionLockList = new ConcurrentHashMap<>();
         LockWaitList = new ConcurrentHashMap<>();
+        waiters = new ConcurrentHashMap<>();
     }
 
-    synchronized boolean acquireLock (TransactionId TID, PageId PID, Permissions p) throws InterruptedException, TransactionAbortedException {
-        if (!lockMap.containsKey(PID)) {
-            makeNewLock(PID);
-        }
-        Lock lock = lockMap.get(PID);
-        boolean res;
-        if (p.equals(Permissions.READ_ONLY)){
-            res = acquireSharedLock(TID, lock);
-            if (res) putToLiST(transactionLockList, TID, lock);
-        } else {
-            res = acquireExclusiveLock(TID, lock);
-            if (res) putToLiST(transactionLockList, TID, lock);
+    /**
+     * Sets the policy that picks the transaction a deadlock aborts.
+     * @see #VICTIM
+     * @throws IllegalArgumentException if the name is unknown
+     */
+    public void setVictimPolicy(String name) {
+        if (!name.equals("youngest") && !name.equals("fewest-locks") && !name.equals("least-log")) {
+            throw new IllegalArgumentException("unknown victim policy " + name);
         }
-        return res;
+        victimPolicy = name;
     }
 
-    synchronized void releaseLock (TransactionId TID, PageId PID){
-        if (!lockMap.containsKey(PID)) return;
-        Lock lock = lockMap.get(PID);
-        lock.releaseLock(TID);
-        if (transactionLockList.containsKey(TID)) transactionLockList.get(TID).remove(lock);
-        notifyAll();
+    public String getVictimPolicy() {
+        return victimPolicy;
     }
 
+    public String getDeadlockMode() {
+        return deadlockMode;
+    }
 
-    private synchronized boolean acquireSharedLock(TransactionId TID, Lock lock) throws InterruptedException, TransactionAbortedException {
-        while(!lock.acquireSharedLock(TID)){
-            // This means there is another transaction holding the exclusiveLock of this lock.
-            putToWait(TID, lock);
-            if (detectDeadLock(TID)){
-                removeFromWait(TID, lock);
-                notifyAll();
-                return false;
-            }
-            wait();
-            removeFromWait(TID, lock);
-        }
+    /** Returns the number of deadlocks found so far, with "detect". */
+    public long getDeadlockCount() {
+        return deadlocks.get();
+    }
 
-        return true;
+    /** Returns the index of the stripe the lock on PID belongs to. */
+    int stripeIndex(PageId PID) {
+        return (PID.hashCode() & Integer.MAX_VALUE) % stripes.length;
     }
 
-    private synchronized boolean acquireExclusiveLock(TransactionId TID, Lock lock) throws InterruptedException, TransactionAbortedException {
-        while(!lock.acquireExclusiveLock(TID)){
-            // This means there is another transaction holding the exclusiveLock of this lock.
-            // Or, at least one another transaction is holding the sharedLock of this lock.
-            putToWait(TID, lock);
-            if (detectDeadLock(TID)){
-                removeFromWait(TID, lock);
-                notifyAll();
-                return false;
-            }
-            wait();
-            removeFromWait(TID, lock);
-        }
+    private Stripe stripe(PageId PID) {
+        return stripes[stripeIndex(PID)];
+    }
 
-        return true;
+    // THESE FUNCTIONS SHOULD ONLY BE USED FOR TESTING!!
+    // hold the mutex of the stripe of PID, as a lock operation on PID does
+    void lockStripe(PageId PID) {
+        stripe(PID).mutex.lock();
+    }
+
+    void unlockStripe(PageId PID) {
+        stripe(PID).mutex.unlock();
     }
 
-    private synchronized void putToWait(TransactionId tid, Lock lock) {
-        HashSet<TransactionId> TIDWaitFor = new HashSet<>();
-        if (LockWaitList.containsKey(tid)){
-            TIDWaitFor = LockWaitList.get(tid);
+    /**
+     * Acquires a lock on PID for TID, waiting in the lock's queue while it
+     * is held in a conflicting mode.
+     * @return true if TID holds the lock; false if TID was picked as the
+     *     victim of a deadlock, may not wait under the deadlock mode, or
+     *     was wounded
+     */
+    boolean acquireLock (TransactionId TID, PageId PID, Permissions p) throws InterruptedException, TransactionAbortedException {
+        if (wounded.contains(TID)) {
+            // wounded while it was not waiting: abort at once
+            return false;
         }
-        if (lock.exclusiveLock != null){
-            TIDWaitFor.add(lock.exclusiveLock);
-        } else {
-            for (TransactionId waitTID: lock.sharedLock){
-                TIDWaitFor.add(waitTID);
+        boolean exclusive = p.equals(Permissions.READ_WRITE);
+        Stripe stripe = stripe(PID);
+        stripe.mutex.lock();
+        try {
+            Lock lock = stripe.locks.get(PID);
+            if (lock == null) {
+                lock = new Lock(PID);
+                stripe.locks.put(PID, lock);
+            }
+            if (lock.tryGrant(TID, exclusive)) {
+                putToList(TID, lock);
+                return true;
+            }
+
+            Waiter waiter = new Waiter(TID, exclusive, stripe);
+            lock.enqueue(waiter);
+            Set<TransactionId> blockers = lock.blockers(waiter);
+            // a transaction in the graph can always be found to abort
+            waiters.put(TID, waiter);
+            LockWaitList.put(TID, blockers);
+            try {
+                List<TransactionId> victims = new ArrayList<>();
+                if (!mayWait(waiter, blockers, victims)) {
+                    lock.dequeue(waiter, stripe);
+                    return false;
+                }
+                if (!victims.isEmpty()) {
+                    // never hold two stripes at once; our waiter stays
+                    // queued, so the lock is not forgotten meanwhile
+                    stripe.mutex.unlock();
+                    try {
+                        for (TransactionId victim : victims) {
+                            Waiter other = waiters.get(victim);
+                            if (other != null) abort(other);
+                        }
+                    } finally {
+                        stripe.mutex.lock();
+                    }
+                }
+                while (!waiter.done && !waiter.aborted) {
+                    waiter.granted.await();
+                }
+                if (!waiter.done) {
+                    lock.dequeue(waiter, stripe);
+                    return false;
+                }
+            } catch (InterruptedException e) {
+                if (!waiter.done) {
+                    lock.dequeue(waiter, stripe);
+                    throw e;
+                }
+                // granted meanwhile: keep the lock, and the interrupt
+                Thread.currentThread().interrupt();
+            } finally {
+                LockWaitList.remove(TID);
+                waiters.remove(TID, waiter);
             }
+            putToList(TID, lock);
+            return true;
+        } finally {
+            stripe.mutex.unlock();
         }
-        LockWaitList.put(tid, TIDWaitFor);
     }
 
-    private synchronized void removeFromWait(TransactionId tid, Lock lock) {
-        if (lock.exclusiveLock != null){
-            LockWaitList.get(tid).remove(lock.exclusiveLock);
-        } else {
-            for (TransactionId waitTID: lock.sharedLock){
-                LockWaitList.get(tid).remove(waitTID);
+    /**
+     * Acquires a shared lock on PID for TID unless another transaction holds
+     * it exclusively or waits for it; never waits.
+     * @return true if TID holds a shared lock on PID
+     */
+    boolean tryAcquireSharedLock (TransactionId TID, PageId PID) {
+        Stripe stripe = stripe(PID);
+        stripe.mutex.lock();
+        try {
+            Lock lock = stripe.locks.get(PID);
+            if (lock == null) {
+                lock = new Lock(PID);
+                stripe.locks.put(PID, lock);
+            }
+            if (!lock.tryGrant(TID, false)) {
+                return false;
             }
+            putToList(TID, lock);
+            return true;
+        } finally {
+            stripe.mutex.unlock();
         }
     }
 
-    private synchronized void makeNewLock(PageId PID){
-        assert !lockMap.containsKey(PID);
-        Lock newLock = new Lock(PID);
-        lockMap.put(PID, newLock);
+    void releaseLock (TransactionId TID, PageId PID){
+        Stripe stripe = stripe(PID);
+        stripe.mutex.lock();
+        try {
+            Lock lock = stripe.locks.get(PID);
+            if (lock == null) return;
+            lock.releaseLock(TID);
+            Set<Lock> locks = transactionLockList.get(TID);
+            if (locks != null) locks.remove(lock);
+            if (locks == null || locks.isEmpty()) wounded.remove(TID);
+            lock.grantWaiters(stripe);
+        } finally {
+            stripe.mutex.unlock();
+        }
     }
 
-    private synchronized void putToLiST(ConcurrentHashMap<TransactionId, HashSet<Lock>> list, TransactionId TID, Lock lock){
-        HashSet<Lock> TIDLocks = new HashSet<>();
-        if (list.containsKey(TID)){
-            TIDLocks = list.get(TID);
+    private void putToList(TransactionId TID, Lock lock){
+        Set<Lock> TIDLocks = transactionLockList.get(TID);
+        if (TIDLocks == null) {
+            Set<Lock> created = ConcurrentHashMap.newKeySet();
+            TIDLocks = transactionLockList.putIfAbsent(TID, created);
+            if (TIDLocks == null) {
+                TIDLocks = created;
+            }
         }
         TIDLocks.add(lock);
-        list.put(TID, TIDLocks);
     }
 
-    synchronized boolean holdsLock (TransactionId TID, PageId PID){
-        Lock lock = lockMap.get(PID);
-        if (lock == null) return false;
-        if (TID.equals(lock.exclusiveLock)) return true;
-        if (lock.sharedLock.contains(TID)) return true;
-        return false;
+    boolean holdsLock (TransactionId TID, PageId PID){
+        Stripe stripe = stripe(PID);
+        stripe.mutex.lock();
+        try {
+            Lock lock = stripe.locks.get(PID);
+            if (lock == null) return false;
+            return TID.equals(lock.exclusiveLock) || lock.sharedLock.contains(TID);
+        } finally {
+            stripe.mutex.unlock();
+        }
     }
 
-    synchronized boolean detectDeadLock(TransactionId tid) throws TransactionAbortedException {
-        HashSet<Lock> currentLocks = transactionLockList.get(tid);
-
-        if (currentLocks == null) return false;
-        if (currentLocks.isEmpty()) return false;
-        HashSet<TransactionId> waitTIDs = LockWaitList.get(tid);
-        if (waitTIDs == null) return false;
-        if (waitTIDs.isEmpty()) return false;
-
-        for (TransactionId waitTid: waitTIDs){
-            if (waitTid.equals(tid)) continue;
-            HashSet<TransactionId> waitTidWaits = LockWaitList.get(waitTid);
-            if (waitTidWaits == null) continue;
-            for (TransactionId waitTidWait: waitTidWaits){
-                if (waitTidWait.equals(tid)){
-                    return true;
+    /**
+     * Decides, under the deadlock mode, whether the waiter just queued
+     * may wait for its blockers. Adds the transactions that have to be
+     * aborted for it to victims.
+     */
+    private boolean mayWait(Waiter waiter, Set<TransactionId> blockers,
+            List<TransactionId> victims) {
+        TransactionId tid = waiter.tid;
+        if (deadlockMode.equals("wait-die")) {
+            for (TransactionId blocker : blockers) {
+                if (blocker.isOlderThan(tid)) return false;
+            }
+            return true;
+        }
+        if (deadlockMode.equals("wound-wait")) {
+            // checked after registering the waiter, so a transaction
+            // wounding tid meanwhile finds the waiter to abort
+            if (wounded.contains(tid)) return false;
+            for (TransactionId blocker : blockers) {
+                if (tid.isOlderThan(blocker)) {
+                    wounded.add(blocker);
+                    victims.add(blocker);
                 }
             }
+            return true;
+        }
+        // aborting the victim of one cycle may leave others through tid
+        List<TransactionId> cycle;
+        while ((cycle = detectDeadLock(tid, victims)) != null) {
+            deadlocks.incrementAndGet();
+            TransactionId victim = chooseVictim(cycle);
+            if (victim.equals(tid)) return false;
+            victims.add(victim);
+        }
+        return true;
+    }
+
+    /**
+     * Looks for a cycle of waiting transactions through tid, which just
+     * started waiting; a cycle that appeared just now has to go through
+     * it. Each transaction registers what it waits for before checking, so
+     * of two transactions closing a cycle at the same time at least one
+     * sees it.
+     * @param aborted transactions about to be aborted, which break any
+     *     cycle through them
+     * @return the transactions on the cycle, starting with tid, or null
+     */
+    List<TransactionId> detectDeadLock(TransactionId tid, List<TransactionId> aborted) {
+        ArrayList<TransactionId> path = new ArrayList<>();
+        path.add(tid);
+        return findCycle(tid, path, new HashSet<TransactionId>(aborted)) ? path : null;
+    }
+
+    /** Depth-first search for a path from the end of path back to start. */
+    private boolean findCycle(TransactionId start, ArrayList<TransactionId> path,
+            Set<TransactionId> visited) {
+        Set<TransactionId> waitTIDs = LockWaitList.get(path.get(path.size() - 1));
+        if (waitTIDs == null) return false;
+        for (TransactionId waitTid : waitTIDs) {
+            if (waitTid.equals(start)) return true;
+            if (!visited.add(waitTid)) continue;
+            path.add(waitTid);
+            if (findCycle(start, path, visited)) return true;
+            path.remove(path.size() - 1);
         }
         return false;
     }
 
+    /**
+     * Picks the transaction of a deadlock to abort with the victim policy;
+     * ties, and the "youngest" policy, go to the transaction that began
+     * last, so the transactions that have been running longest finish.
+     */
+    private TransactionId chooseVictim(List<TransactionId> cycle) {
+        String policy = victimPolicy;
+        TransactionId victim = null;
+        long victimCost = 0;
+        for (TransactionId tid : cycle) {
+            long cost;
+            if (policy.equals("fewest-locks")) {
+                Set<Lock> locks = transactionLockList.get(tid);
+                cost = locks == null ? 0 : locks.size();
+            } else if (policy.equals("least-log")) {
+                cost = Database.getLogFile().getLogBytes(tid);
+            } else {
+                cost = 0;
+            }
+            if (victim == null || cost < victimCost
+                    || (cost == victimCost && victim.isOlderThan(tid))) {
+                victim = tid;
+                victimCost = cost;
+            }
+        }
+        return victim;
+    }
+
+    /** Makes the pending request of a deadlock victim fail, unless it was granted meanwhile. */
+    private void abort(Waiter waiter) {
+        waiter.stripe.mutex.lock();
+        try {
+            if (!waiter.done) {
+                waiter.aborted = true;
+                waiter.granted.signal();
+            }
+        } finally {
+            waiter.stripe.mutex.unlock();
+        }
+    }
+
     public HashSet<Lock> getTransactionLocks(TransactionId tid){
-        return (HashSet<Lock>) this.transactionLockList.get(tid).clone();
+        Set<Lock> locks = this.transactionLockList.get(tid);
+        if (locks == null) return new HashSet<>();
+        return new HashSet<>(locks);
     }
 
 
@@ -167,11 +444,14 @@ public class LockManager {
      * sharedLock: A set records which TransactionIds that have a shared lock on this PID.
      * exclusiveLock: Records which transactionId that has an exclusive lock on this PID.
      *                (exclusiveLock = null if exclusiveLock is free).
+     * queue: The transactions waiting for this lock, in the order they are granted it.
+     * All fields are protected by the mutex of the stripe of PID.
      */
     public class Lock{
         private PageId PID;
         private HashSet<TransactionId> sharedLock;
         private TransactionId exclusiveLock;
+        private ArrayDeque<Waiter> queue;
 
 
         /**
@@ -181,50 +461,133 @@ public class LockManager {
             this.PID = PID;
             this.sharedLock = new HashSet<>();
             this.exclusiveLock = null;
+            this.queue = new ArrayDeque<>();
         }
 
         /**
-         * Transaction "TID" wants to acquire SharedLock on this.PID.
-         * TID can only obtain SharedLock if exclusiveLock is free.
-         * @return true if TID obtained SharedLock on this.PID.
+         * Whether TID could hold this lock in the requested mode alongside
+         * its current holders. An exclusive lock covers a shared one, and
+         * the only shared holder may upgrade.
          */
-        private synchronized boolean acquireSharedLock(TransactionId TID){
-            if (this.sharedLock.contains(TID)) return true;
-            if (this.exclusiveLock != null){
-                if (exclusiveLock.equals(TID)) {
-                    assert sharedLock.size() == 0;
-                    releaseLock(TID);
-                } else {
-                    return false;
+        private boolean compatible(TransactionId TID, boolean exclusive){
+            if (TID.equals(exclusiveLock)) return true;
+            if (exclusiveLock != null) return false;
+            if (!exclusive) return true;
+            return sharedLock.isEmpty() || (sharedLock.size() == 1 && sharedLock.contains(TID));
+        }
+
+        private void grant(TransactionId TID, boolean exclusive){
+            if (TID.equals(exclusiveLock)) return;
+            if (exclusive) {
+                sharedLock.remove(TID);
+                exclusiveLock = TID;
+            } else {
+                sharedLock.add(TID);
+            }
+        }
+
+        /**
+         * Grants the lock to TID right away if that is compatible with its
+         * holders and no other transaction is waiting ahead of TID.
+         * @return true if TID holds the lock in the requested mode
+         */
+        private boolean tryGrant(TransactionId TID, boolean exclusive){
+            boolean holds = TID.equals(exclusiveLock) || sharedLock.contains(TID);
+            if (holds && !exclusive) return true;
+            if (!compatible(TID, exclusive)) return false;
+            // newcomers queue up behind the waiters; holders upgrading
+            // go first anyway
+            if (!holds && !queue.isEmpty()) return false;
+            grant(TID, exclusive);
+            if (holds && !queue.isEmpty()) blockerAdded(TID);
+            return true;
+        }
+
+        /**
+         * Recomputes what the waiters wait for after TID started to block
+         * them too, by upgrading its lock; a new wait must not close a
+         * cycle unseen. Applies the deadlock mode to the new waits: with
+         * wait-die, waiters younger than TID are aborted; with wound-wait,
+         * a waiter older than TID wounds it.
+         */
+        private void blockerAdded(TransactionId TID){
+            for (Waiter waiter : queue) {
+                if (waiter.tid.equals(TID)) continue;
+                Set<TransactionId> blockers = blockers(waiter);
+                LockWaitList.put(waiter.tid, blockers);
+                if (!blockers.contains(TID)) continue;
+                if (deadlockMode.equals("wait-die") && TID.isOlderThan(waiter.tid)) {
+                    abort(waiter);
+                } else if (deadlockMode.equals("wound-wait") && waiter.tid.isOlderThan(TID)) {
+                    wounded.add(TID);
                 }
             }
-            return sharedLock.add(TID);
         }
 
         /**
-         * Transaction "TID" wants to acquire ExclusiveLock on this.PID.
-         * TID can only obtain SharedLock if exclusiveLock is free AND
-         * no other Transactions currently held a SharedLock. (SharedLock.size() == 0)
-         * (In case if exclusiveLock is free AND transaction TID is the only transaction
-         * holding a shared lock on an this.PID, then TID may upgrade its lock to exclusive lock)
-         * @return true if TID obtained exclusiveLock on this.PID.
+         * Adds a waiter to the queue; a holder upgrading goes first, so the
+         * other waiters wait for it too.
          */
-        private synchronized boolean acquireExclusiveLock(TransactionId TID){
-            if (TID.equals(exclusiveLock)) return true;
-            if (exclusiveLock != null) return false;
-            if (sharedLock.size() > 1) return false;
-            if (sharedLock.size() == 1){
-                if (!sharedLock.contains(TID)) return false;
-                releaseLock(TID);
+        private void enqueue(Waiter waiter){
+            if (sharedLock.contains(waiter.tid)) {
+                queue.addFirst(waiter);
+                blockerAdded(waiter.tid);
+            } else {
+                queue.addLast(waiter);
+            }
+        }
+
+        /** Removes a waiter that gave up, which may let the ones after it in. */
+        private void dequeue(Waiter waiter, Stripe stripe){
+            queue.remove(waiter);
+            grantWaiters(stripe);
+        }
+
+        /**
+         * Returns the transactions the waiter waits for: the holders, and the
+         * waiters ahead of it in the queue whose request conflicts with its.
+         */
+        private Set<TransactionId> blockers(Waiter waiter){
+            Set<TransactionId> blockers = ConcurrentHashMap.newKeySet();
+            if (exclusiveLock != null) {
+                blockers.add(exclusiveLock);
+            } else if (waiter.exclusive) {
+                blockers.addAll(sharedLock);
+            }
+            for (Waiter ahead : queue) {
+                if (ahead == waiter) break;
+                if (ahead.exclusive || waiter.exclusive) blockers.add(ahead.tid);
+            }
+            blockers.remove(waiter.tid);
+            return blockers;
+        }
+
+        /**
+         * Grants the lock to the waiters at the head of the queue that are
+         * compatible with the holders, in order, and wakes them. The
+         * remaining waiters wait for fewer transactions now. Forgets the
+         * lock once nobody holds it or waits for it.
+         */
+        private void grantWaiters(Stripe stripe){
+            while (!queue.isEmpty() && compatible(queue.peekFirst().tid, queue.peekFirst().exclusive)) {
+                Waiter waiter = queue.pollFirst();
+                grant(waiter.tid, waiter.exclusive);
+                waiter.done = true;
+                waiter.granted.signal();
+                LockWaitList.remove(waiter.tid);
+            }
+            for (Waiter waiter : queue) {
+                LockWaitList.put(waiter.tid, blockers(waiter));
+            }
+            if (exclusiveLock == null && sharedLock.isEmpty() && queue.isEmpty()) {
+                stripe.locks.remove(PID);
             }
-            exclusiveLock = TID;
-            return true;
         }
 
         /**
          * TransactionId "TID" wants to release the lock on this.PID.
          */
-        private synchronized void releaseLock (TransactionId TID){
+        private void releaseLock (TransactionId TID){
             if (TID.equals(this.exclusiveLock)) {
                 exclusiveLock = null;
             } else {
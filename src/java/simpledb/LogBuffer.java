@@ -0,0 +1,139 @@
+package simpledb;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * LogBuffer holds the tail of the log that has been appended but not yet
+ * written to the log segments. LogFile serializes each record in memory and
+ * appends it here whole; the buffer goes to the segments in large sequential
+ * writes, when it fills up or when the log is forced.
+ * <p>
+ * Positions are LSNs. The buffer remembers where each
+ * buffered record ends, so that it can be written out up to the end of any
+ * record without splitting one.
+ * <p>
+ * Not thread safe; LogFile only uses it while holding its monitor.
+ */
+class LogBuffer {
+
+    private byte[] data;
+    private int size;
+    /** LSN of data[0]. */
+    private long start;
+
+    /** Offsets in data of the end of each buffered record. */
+    private int[] recordEnds = new int[64];
+    private int numRecords;
+
+    /**
+     * Creates an empty buffer.
+     *
+     * @param capacity the size in bytes of the buffer
+     * @param start the LSN the first record will be written at
+     */
+    LogBuffer(int capacity, long start) {
+        this.data = new byte[capacity];
+        this.start = start;
+    }
+
+    /** Returns the LSN the next record will be written at. */
+    long end() {
+        return start + size;
+    }
+
+    /** Returns the LSN of the first byte not written to the segments. */
+    long start() {
+        return start;
+    }
+
+    /**
+     * Empties the buffer and moves it to the specified LSN; used when the
+     * log is replaced.
+     */
+    void reset(long start) {
+        this.start = start;
+        this.size = 0;
+        this.numRecords = 0;
+    }
+
+    /**
+     * Appends a record, writing out the buffered records first if it does
+     * not fit.
+     *
+     * @return the LSN of the record
+     */
+    long append(byte[] record, int len, LogSegments segments) throws IOException {
+        if (size + len > data.length) {
+            writeTo(segments, end());
+            if (len > data.length) {
+                data = new byte[len];
+            }
+        }
+        long offset = end();
+        System.arraycopy(record, 0, data, size, len);
+        size += len;
+        if (numRecords == recordEnds.length) {
+            recordEnds = Arrays.copyOf(recordEnds, numRecords * 2);
+        }
+        recordEnds[numRecords++] = size;
+        return offset;
+    }
+
+    /**
+     * Returns an input reading the buffered record at the specified LSN, or
+     * null if the record was written out already. The input is valid until
+     * the buffer changes.
+     */
+    DataInput reader(long lsn) {
+        if (lsn < start || lsn >= end()) {
+            return null;
+        }
+        int offset = (int) (lsn - start);
+        return new DataInputStream(new ByteArrayInputStream(data, offset, size - offset));
+    }
+
+    /**
+     * Returns the LSN of the end of the record that contains the specified
+     * LSN, or the end of the buffer if the LSN is past it. LSNs that were
+     * already written out are returned unchanged.
+     */
+    long endOfRecord(long offset) {
+        if (offset < start) {
+            return offset;
+        }
+        int i = Arrays.binarySearch(recordEnds, 0, numRecords, (int) (offset - start) + 1);
+        if (i < 0) {
+            i = -i - 1;
+        }
+        return i < numRecords ? start + recordEnds[i] : end();
+    }
+
+    /**
+     * Writes the buffered bytes before the specified LSN, which must be the
+     * end of a record, to the segments with a single write per segment. The
+     * segments are not forced.
+     */
+    void writeTo(LogSegments segments, long upTo) throws IOException {
+        int len = (int) (Math.min(upTo, end()) - start);
+        if (len <= 0) {
+            return;
+        }
+        segments.write(start, data, 0, len);
+
+        System.arraycopy(data, len, data, 0, size - len);
+        size -= len;
+        start += len;
+        int written = 0;
+        while (written < numRecords && recordEnds[written] <= len) {
+            written++;
+        }
+        for (int i = written; i < numRecords; i++) {
+            recordEnds[i - written] = recordEnds[i] - len;
+        }
+        numRecords -= written;
+    }
+}
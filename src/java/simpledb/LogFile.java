@@ -2,8 +2,15 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.util.*;
-import java.lang.reflect.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -11,6 +18,12 @@ able to write different log records as needed, but it is the
 responsibility of the caller to ensure that write ahead logging and
 two-phase locking discipline are followed.  <p>
 
+Records are serialized in memory and appended to a {@link LogBuffer},
+which is written to the file in large sequential chunks.  Each record
+is identified by its LSN, which increases with every record appended;
+a record is only known to be on disk once {@link #force(long)} has
+been called with its LSN (or a later one.)  <p>
+
 <u> Locking note: </u>
 <p>
 
@@ -39,33 +52,51 @@ must not be declared synchronized and must begin with a block like:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
-last written checkpoint, or -1 if there are no checkpoints
+<li> The log is kept in segment files of a fixed size, named after the
+log file; a manifest next to them holds the LSN of the first record, the
+LSN of the last checkpoint, or -1 if there are no checkpoints, and the id
+of the log, which changes whenever the log is started afresh (see
+getLogId and LogSegments).  The LSN of a record is its position in the
+sequence of segments.
 
-<li> All additional data in the log consists of log records.  Log
-records are variable length.
+<li> The segments hold log records.  Log records are variable length,
+and may span segments.
 
 <li> Each log record begins with an integer type and a long integer
 transaction id.
 
-<li> Each log record ends with a long integer file offset representing
-the position in the log file where the record began.
+<li> Each log record ends with a long integer LSN representing the
+position in the log where the record began.  The end of the log is the
+first position, after the last checkpoint, where no record ending with
+its own LSN starts.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are six record types: ABORT, COMMIT, UPDATE, DELTA, BEGIN,
+and CHECKPOINT
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
-<li>UPDATE RECORDS consist of two entries, a before image and an
-after image.  These images are serialized Page objects, and can be
-accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
+<li>UPDATE RECORDS consist of the LSN of the previous UPDATE or DELTA
+record of the same transaction (or -1), then two entries, a before
+image and an after image.  These images are serialized Page objects:
+the integer code of the page type, the integer size of the encoding,
+then the encoding written by the PageCodec registered for the type (see
+PageCodecs).  They can be accessed with the LogFile.readPageData() and
+LogFile.writePageData() methods.  See LogFile.print() for an example.
+
+<li>DELTA records take the place of UPDATE records for HeapPages.  They
+hold the LSN of the previous record of the transaction like UPDATE
+records, the table id and page number, then only the byte ranges in which
+the after image differs from the before image, with the contents of
+each range in both images.  See PageDelta.
 
 <li> CHECKPOINT records consist of active transactions at the time
 the checkpoint was taken and their first log record on disk.  The format
 of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
-for each active transaction.
+as a long integer transaction id, a long integer first record offset and
+the LSN of the last UPDATE or DELTA record (or -1) for each active
+transaction.  Then comes the dirty page table: an integer count of
+pages, and the integer table id, integer page number and long integer
+recLSN of each page whose changes may not be on disk.
 
 </ul>
 
@@ -74,7 +105,7 @@ for each active transaction.
 public class LogFile {
 
     final File logFile;
-    private RandomAccessFile raf;
+    final LogSegments segments;
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
@@ -82,16 +113,130 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int DELTA_RECORD = 6;
     static final long NO_CHECKPOINT_ID = -1;
 
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
 
-    long currentOffset = -1;//protected by this
+    /** prevLSN of the first record of a transaction. */
+    static final long NO_LSN = PageLsnMap.NO_LSN;
+
+    /**
+     * Size in bytes of the in-memory log buffer. Read from the
+     * simpledb.LogFile.bufferSize system property; defaults to 1MB.
+     */
+    public static final int BUFFER_SIZE = Integer.getInteger("simpledb.LogFile.bufferSize", 1 << 20);
+
+    /**
+     * Size in bytes of the log segment files. Read from the
+     * simpledb.LogFile.segmentSize system property; defaults to 16MB. An
+     * existing log keeps the size it was created with.
+     */
+    public static final long SEGMENT_SIZE = Long.getLong("simpledb.LogFile.segmentSize", 16 << 20);
+
+    /** Records appended but not yet written to the segments. Protected by this. */
+    private final LogBuffer buffer;
+    /** Records before this LSN are on disk. Protected by this. */
+    private long flushedLsn;
+    /**
+     * True while a thread forces the segments without holding the monitor;
+     * the others wait for it, since flushedLsn only covers what it forces
+     * once it is done. Protected by this.
+     */
+    private boolean forcing;
+    /** Id of this log, stored in its manifest; see getLogId. */
+    private volatile long logId;
+
+    /** A ByteArrayOutputStream whose contents can be read without a copy. */
+    private static class RecordBytes extends ByteArrayOutputStream {
+        byte[] bytes() {
+            return buf;
+        }
+    }
+
+    /** The record being serialized. Protected by this. */
+    private final RecordBytes recordBytes = new RecordBytes();
+    private final DataOutputStream record = new DataOutputStream(recordBytes);
 //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
     HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
+    /** LSN of the last UPDATE or DELTA record of each live transaction. */
+    HashMap<Long,Long> tidToLastLsn = new HashMap<Long,Long>();
+    /**
+     * Bytes of log each live transaction has written so far. Changed only
+     * while holding this, but read without it by {@link LockManager}.
+     */
+    private final ConcurrentHashMap<Long,Long> tidToLogBytes = new ConcurrentHashMap<Long,Long>();
+    /** Transaction of the record being serialized. Protected by this. */
+    private long recordTid;
+
+    /**
+     * How long, in microseconds, the log writer waits for more commits
+     * after the first one of a batch before it writes the batch. Read from
+     * the simpledb.LogFile.groupCommitWindow system property; 0 (the
+     * default) batches only the commits that queued up while the previous
+     * batch was being forced.
+     */
+    public static final long GROUP_COMMIT_WINDOW =
+        Long.getLong("simpledb.LogFile.groupCommitWindow", 0);
+
+    /** How long the log writer thread waits for a commit before exiting. */
+    private static final long WRITER_IDLE_MILLIS = 1000;
+
+    /** A commit waiting for the log writer. */
+    private static class PendingCommit {
+        final TransactionId tid;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        PendingCommit(TransactionId tid) {
+            this.tid = tid;
+        }
+    }
+
+    /** Commits waiting for the log writer; also guards logWriter. */
+    private final LinkedBlockingQueue<PendingCommit> pendingCommits = new LinkedBlockingQueue<>();
+    private Thread logWriter;
+    private volatile long groupCommitWindow = GROUP_COMMIT_WINDOW;
+
+    /** Element i counts the batches of 2^i to 2^(i+1)-1 commits. */
+    private final AtomicLongArray commitBatchSizes = new AtomicLongArray(Integer.SIZE);
+
+    /**
+     * Number of threads that apply the redo pass of recovery. Read from the
+     * simpledb.LogFile.redoThreads system property; defaults to the number
+     * of processors.
+     */
+    public static final int REDO_THREADS =
+        Integer.getInteger("simpledb.LogFile.redoThreads", Runtime.getRuntime().availableProcessors());
+
+    private volatile int redoThreads = REDO_THREADS;
+
+    /**
+     * Milliseconds after which a checkpoint is taken automatically. Read
+     * from the simpledb.LogFile.checkpointInterval system property; 0 (the
+     * default) takes none on a timer.
+     */
+    public static final long CHECKPOINT_INTERVAL = Long.getLong("simpledb.LogFile.checkpointInterval", 0);
+
+    /**
+     * Bytes of log after which a checkpoint is taken automatically. Read
+     * from the simpledb.LogFile.checkpointLogBytes system property; 0 (the
+     * default) takes none based on log size.
+     */
+    public static final long CHECKPOINT_LOG_BYTES = Long.getLong("simpledb.LogFile.checkpointLogBytes", 0);
+
+    /** How often the checkpointer thread checks whether a checkpoint is due. */
+    private static final long CHECKPOINT_POLL_MILLIS = 100;
+
+    /** Serializes checkpoints; also guards checkpointer. */
+    private final Object checkpointLock = new Object();
+    private Thread checkpointer;
+    private volatile long checkpointInterval;
+    private volatile long checkpointLogBytes;
+    private volatile long lastCheckpointLsn;
+    private volatile long lastCheckpointNanos = System.nanoTime();
 
     /** Constructor.
         Initialize and back the log file with the specified file.
@@ -106,8 +251,16 @@ public class LogFile {
     */
     public LogFile(File f) throws IOException {
 	this.logFile = f;
-        raf = new RandomAccessFile(f, "rw");
+        segments = new LogSegments(f, SEGMENT_SIZE);
         recoveryUndecided = true;
+        long end = segments.getStart();
+        if (segments.exists()) {
+            logId = segments.getLogId();
+            end = findEnd();
+        }
+        segments.setLength(end);
+        buffer = new LogBuffer(BUFFER_SIZE, end);
+        flushedLsn = end;
 
         // install shutdown hook to force cleanup on close
         // Runtime.getRuntime().addShutdownHook(new Thread() {
@@ -118,6 +271,11 @@ public class LogFile {
         // log file actually corresponds to the current catalog.
         // This could cause problems since we log tableids, which may or
         // may not match tableids in the current catalog.
+
+        lastCheckpointLsn = flushedLsn;
+        checkpointInterval = CHECKPOINT_INTERVAL;
+        checkpointLogBytes = CHECKPOINT_LOG_BYTES;
+        startCheckpointer();
     }
 
     // we're about to append a log record. if we weren't sure whether the
@@ -127,12 +285,156 @@ public class LogFile {
         totalRecords++;
         if(recoveryUndecided){
             recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            // a new log: pageLSNs saved for the old one must no longer
+            // be trusted
+            long oldId = logId;
+            Random random = new Random();
+            do {
+                logId = random.nextLong();
+            } while (logId == oldId || logId == 0);
+            long start = segments.reset(logId);
+            buffer.reset(start);
+            flushedLsn = start;
+            lastCheckpointLsn = flushedLsn;
+        }
+    }
+
+    /**
+     * Finds the end of the log: reads records from the last checkpoint, or
+     * the start of the log, until one is incomplete or does not end with
+     * its own LSN, as happens where recycled segments hold records of
+     * another position.
+     *
+     * @return the LSN after the last record
+     */
+    private long findEnd() {
+        long lsn = segments.getCheckpoint() != NO_CHECKPOINT_ID
+            ? segments.getCheckpoint() : segments.getStart();
+        long limit = segments.limit();
+        try {
+            while (lsn < limit) {
+                long next = skipRecord(lsn, limit);
+                if (next < 0) {
+                    break;
+                }
+                lsn = next;
+            }
+        } catch (IOException e) {
+            // a record cut short by a crash: the log ends before it
+        }
+        return lsn;
+    }
+
+    /**
+     * Reads the record at the specified LSN without deserializing any page,
+     * so that the catalog need not be loaded.
+     *
+     * @return the LSN after the record, or -1 if there is no valid record
+     */
+    private long skipRecord(long lsn, long limit) throws IOException {
+        segments.seek(lsn);
+        int type = segments.readInt();
+        segments.readLong();
+        switch (type) {
+        case ABORT_RECORD:
+        case COMMIT_RECORD:
+        case BEGIN_RECORD:
+            break;
+        case UPDATE_RECORD:
+            segments.readLong();
+            skipPageData(limit);
+            skipPageData(limit);
+            break;
+        case DELTA_RECORD:
+            segments.readLong();
+            segments.skipBytes(2 * INT_SIZE);
+            int numRanges = segments.readInt();
+            if (numRanges < 0) {
+                return -1;
+            }
+            for (int i = 0; i < numRanges; i++) {
+                segments.readInt();
+                int len = segments.readInt();
+                if (len < 0 || segments.getFilePointer() + 2L * len > limit) {
+                    return -1;
+                }
+                segments.skipBytes(2 * len);
+            }
+            break;
+        case CHECKPOINT_RECORD:
+            int numXactions = segments.readInt();
+            if (numXactions < 0 || numXactions * 3L * LONG_SIZE > limit - lsn) {
+                return -1;
+            }
+            segments.skipBytes(numXactions * 3 * LONG_SIZE);
+            int numDirty = segments.readInt();
+            if (numDirty < 0 || numDirty * (2L * INT_SIZE + LONG_SIZE) > limit - lsn) {
+                return -1;
+            }
+            segments.skipBytes(numDirty * (2 * INT_SIZE + LONG_SIZE));
+            break;
+        default:
+            return -1;
+        }
+        if (segments.getFilePointer() + LONG_SIZE > limit || segments.readLong() != lsn) {
+            return -1;
+        }
+        return segments.getFilePointer();
+    }
+
+    /** Skips a page written by writePageData, checking its size. */
+    private void skipPageData(long limit) throws IOException {
+        int size = PageCodecs.readSize(segments);
+        if (size < 0 || segments.getFilePointer() + size > limit) {
+            throw new IOException("not a page");
         }
+        segments.skipBytes(size);
+    }
+
+    /**
+     * Returns the id of this log. LSNs are only comparable between records
+     * of logs with the same id: the id changes whenever the log is started
+     * afresh, while truncation keeps it.
+     */
+    public long getLogId() {
+        return logId;
+    }
+
+    /** Starts serializing a record of the specified type. */
+    private void startRecord(int type, long tid) throws IOException {
+        recordBytes.reset();
+        recordTid = tid;
+        record.writeInt(type);
+        record.writeLong(tid);
+    }
+
+    /**
+     * Ends the record started by startRecord with its LSN and appends it
+     * to the log buffer.
+     *
+     * @return the LSN of the record
+     */
+    private long endRecord() throws IOException {
+        record.writeLong(buffer.end());
+        if (tidToFirstLogRecord.containsKey(recordTid)) {
+            Long bytes = tidToLogBytes.get(recordTid);
+            tidToLogBytes.put(recordTid, (bytes == null ? 0 : bytes) + recordBytes.size());
+        }
+        return buffer.append(recordBytes.bytes(), recordBytes.size(), segments);
+    }
+
+    /**
+     * Returns how many bytes of log the specified transaction has written
+     * since it began, or 0 once it has ended.
+     */
+    public long getLogBytes(TransactionId tid) {
+        Long bytes = tidToLogBytes.get(tid.getId());
+        return bytes == null ? 0 : bytes;
+    }
+
+    /** Writes the log buffer to the segments, so that every record can be read. */
+    private void writeBuffer() throws IOException {
+        buffer.writeTo(segments, buffer.end());
     }
 
     public synchronized int getTotalRecords() {
@@ -158,141 +460,334 @@ public class LogFile {
                 // live transactions (needs tidToFirstLogRecord)
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                force();
+                startRecord(ABORT_RECORD, tid.getId());
+                force(endRecord());
                 tidToFirstLogRecord.remove(tid.getId());
+                tidToLastLsn.remove(tid.getId());
+                tidToLogBytes.remove(tid.getId());
             }
         }
     }
 
     /** Write a commit record to disk for the specified tid,
         and force the log to disk.
+        <p>
+        The record is written by the log writer thread, which writes the
+        commit records of every transaction that commits meanwhile (or
+        within the group commit window) with a single write and a single
+        force. This method returns once the record is on disk.
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
+    public void logCommit(TransactionId tid) throws IOException {
+        PendingCommit commit = new PendingCommit(tid);
+        synchronized (pendingCommits) {
+            pendingCommits.add(commit);
+            if (logWriter == null) {
+                logWriter = new Thread("LogFile writer") {
+                    public void run() {
+                        writeCommits();
+                    }
+                };
+                logWriter.setDaemon(true);
+                logWriter.start();
+            }
+        }
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    commit.done.get();
+                    break;
+                } catch (InterruptedException e) {
+                    // the record is queued; it would be written anyway
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException) e.getCause();
+                    }
+                    throw new RuntimeException(e.getCause());
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * The loop of the log writer thread: collects the commits that are
+     * waiting, writes their records, forces the log and lets the
+     * committing threads go. Exits after a second without commits.
+     */
+    private void writeCommits() {
+        ArrayList<PendingCommit> batch = new ArrayList<>();
+        while (true) {
+            try {
+                PendingCommit first = pendingCommits.poll(WRITER_IDLE_MILLIS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    synchronized (pendingCommits) {
+                        if (pendingCommits.isEmpty()) {
+                            logWriter = null;
+                            return;
+                        }
+                    }
+                    continue;
+                }
+                batch.add(first);
+                long window = groupCommitWindow;
+                if (window > 0) {
+                    long deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(window);
+                    long remaining;
+                    while ((remaining = deadline - System.nanoTime()) > 0) {
+                        PendingCommit next = pendingCommits.poll(remaining, TimeUnit.NANOSECONDS);
+                        if (next == null) {
+                            break;
+                        }
+                        batch.add(next);
+                    }
+                }
+            } catch (InterruptedException e) {
+                // only this class starts the writer, and never interrupts it
+            }
+            pendingCommits.drainTo(batch);
+            if (batch.isEmpty()) {
+                continue;
+            }
+
+            // counted before the committers are released, so each of them
+            // sees its own batch
+            int bucket = Integer.SIZE - 1 - Integer.numberOfLeadingZeros(batch.size());
+            commitBatchSizes.incrementAndGet(bucket);
+            try {
+                writeCommitBatch(batch);
+                for (PendingCommit commit : batch) {
+                    commit.done.complete(null);
+                }
+            } catch (Throwable e) {
+                for (PendingCommit commit : batch) {
+                    commit.done.completeExceptionally(e);
+                }
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Appends the commit records of a batch to the log buffer, then forces
+     * the log up to the last of them with a single write. The log is forced
+     * without holding the monitor, so other transactions can keep appending
+     * meanwhile.
+     */
+    private void writeCommitBatch(List<PendingCommit> batch) throws IOException {
+        long lsn = -1;
+        synchronized (this) {
+            for (PendingCommit commit : batch) {
+                preAppend();
+                Debug.log("COMMIT " + commit.tid.getId());
+                startRecord(COMMIT_RECORD, commit.tid.getId());
+                lsn = endRecord();
+                tidToFirstLogRecord.remove(commit.tid.getId());
+                tidToLastLsn.remove(commit.tid.getId());
+                tidToLogBytes.remove(commit.tid.getId());
+            }
+        }
+        force(lsn);
+    }
+
+    /**
+     * Sets how long, in microseconds, the log writer waits for more commits
+     * after the first one of a batch.
+     *
+     * @see #GROUP_COMMIT_WINDOW
+     */
+    public void setGroupCommitWindow(long micros) {
+        this.groupCommitWindow = micros;
+    }
+
+    /** Returns the group commit window in microseconds. */
+    public long getGroupCommitWindow() {
+        return groupCommitWindow;
+    }
+
+    /**
+     * Sets the number of threads that apply the redo pass of recovery.
+     *
+     * @see #REDO_THREADS
+     */
+    public void setRedoThreads(int threads) {
+        this.redoThreads = threads;
+    }
+
+    /** Returns the number of threads that apply the redo pass of recovery. */
+    public int getRedoThreads() {
+        return redoThreads;
+    }
+
+    /**
+     * Sets how long after the last checkpoint one is taken automatically.
+     *
+     * @param millis the interval in milliseconds, or 0 for none
+     * @see #CHECKPOINT_INTERVAL
+     */
+    public void setCheckpointInterval(long millis) {
+        checkpointInterval = millis;
+        startCheckpointer();
+    }
+
+    /** Returns the automatic checkpoint interval in milliseconds, or 0. */
+    public long getCheckpointInterval() {
+        return checkpointInterval;
+    }
+
+    /**
+     * Sets how many bytes of log after the last checkpoint trigger one.
+     *
+     * @param bytes the number of bytes, or 0 for none
+     * @see #CHECKPOINT_LOG_BYTES
+     */
+    public void setCheckpointLogBytes(long bytes) {
+        checkpointLogBytes = bytes;
+        startCheckpointer();
+    }
+
+    /** Returns the log size that triggers a checkpoint, or 0. */
+    public long getCheckpointLogBytes() {
+        return checkpointLogBytes;
+    }
+
+    /**
+     * Starts the thread that takes automatic checkpoints, if either trigger
+     * is set and it is not running. It exits once neither is set, or when
+     * this is no longer the database's log.
+     */
+    private void startCheckpointer() {
+        synchronized (checkpointLock) {
+            if (checkpointer != null || (checkpointInterval <= 0 && checkpointLogBytes <= 0)) {
+                return;
+            }
+            checkpointer = new Thread("LogFile checkpointer") {
+                public void run() {
+                    try {
+                        while (true) {
+                            Thread.sleep(CHECKPOINT_POLL_MILLIS);
+                            synchronized (checkpointLock) {
+                                if ((checkpointInterval <= 0 && checkpointLogBytes <= 0)
+                                        || Database.getLogFile() != LogFile.this) {
+                                    checkpointer = null;
+                                    return;
+                                }
+                            }
+                            if (checkpointDue()) {
+                                logCheckpoint();
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                    synchronized (checkpointLock) {
+                        checkpointer = null;
+                    }
+                }
+            };
+            checkpointer.setDaemon(true);
+            checkpointer.start();
+        }
+    }
+
+    /**
+     * Returns the LSN of the last checkpoint taken since this log was
+     * opened, or the end of the log when it was opened if there was none.
+     */
+    public long getLastCheckpointLsn() {
+        return lastCheckpointLsn;
+    }
+
+    /** Returns whether either automatic checkpoint trigger has been reached. */
+    private boolean checkpointDue() {
+        long interval = checkpointInterval;
+        long bytes = checkpointLogBytes;
+        return (interval > 0 && System.nanoTime() - lastCheckpointNanos >= interval * 1000000L)
+            || (bytes > 0 && getNextLsn() - lastCheckpointLsn >= bytes);
+    }
+
+    /**
+     * Returns how many commits the log writer wrote per batch, as a
+     * histogram: element i is the number of batches of 2^i to 2^(i+1)-1
+     * commits.
+     */
+    public long[] getCommitBatchSizes() {
+        long[] sizes = new long[commitBatchSizes.length()];
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = commitBatchSizes.get(i);
+        }
+        return sizes;
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
-        (with provided         before and after images.)
+        (with provided         before and after images.)  For a HeapPage,
+        a DELTA record holding only the bytes that changed is written
+        instead.
         @param tid The transaction performing the write
         @param before The before image of the page
         @param after The after image of the page
 
+        @return the LSN of the record
         @see simpledb.Page#getBeforeImage
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
+    public  synchronized long logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
+        Debug.log("WRITE, offset = " + buffer.end());
         preAppend();
         /* update record conists of
 
            record type
            transaction id
+           LSN of the previous record of the transaction
            before page data (see writePageData)
            after page data
            start offset
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
-
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        Long prev = tidToLastLsn.get(tid.getId());
+        long prevLsn = prev == null ? NO_LSN : prev;
+        if (before instanceof HeapPage && after instanceof HeapPage
+                && after.getId() instanceof HeapPageId && before.getId().equals(after.getId())) {
+            startRecord(DELTA_RECORD, tid.getId());
+            record.writeLong(prevLsn);
+            PageDelta.diff((HeapPageId) after.getId(), before.getPageData(), after.getPageData())
+                .write(record);
+        } else {
+            startRecord(UPDATE_RECORD, tid.getId());
+            record.writeLong(prevLsn);
+            writePageData(record,before);
+            writePageData(record,after);
+        }
+        long lsn = endRecord();
+        // pages a transaction dirtied can be flushed after it committed;
+        // those records are redone but are not part of its undo chain
+        if (tidToFirstLogRecord.containsKey(tid.getId())) {
+            tidToLastLsn.put(tid.getId(), lsn);
+        }
 
-        Debug.log("WRITE OFFSET = " + currentOffset);
+        Debug.log("WRITE OFFSET = " + buffer.end());
+        return lsn;
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
-        PageId pid = p.getId();
-        int pageInfo[] = pid.serialize();
-
-        //page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
-        // page class bytes
-        // page class data
-
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
-
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
-
-        raf.writeInt(pageInfo.length);
-        for (int i = 0; i < pageInfo.length; i++) {
-            raf.writeInt(pageInfo[i]);
-        }
-        byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
+    /**
+     * Writes a page image with the codec registered for its type; see
+     * {@link PageCodecs}.
+     */
+    void writePageData(DataOutput raf, Page p) throws IOException{
+        PageCodecs.write(p, raf);
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
-
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
-
-        try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object idArgs[] = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = new Integer(raf.readInt());
-            }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
-
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
-
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
-
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
-
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
-
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException e){
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InstantiationException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (IllegalAccessException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InvocationTargetException e) {
-            e.printStackTrace();
-            throw new IOException();
-        }
-        return newPage;
-
+    /** Reads a page image written by writePageData. */
+    Page readPageData(DataInput raf) throws IOException {
+        return PageCodecs.read(raf);
     }
 
     /** Write a BEGIN record for the specified transaction
@@ -307,149 +802,152 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        tidToFirstLogRecord.put(tid.getId(), buffer.end());
+        startRecord(BEGIN_RECORD, tid.getId());
+        endRecord();
 
-        Debug.log("BEGIN OFFSET = " + currentOffset);
+        Debug.log("BEGIN OFFSET = " + buffer.end());
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /**
+     * Checkpoint the log and write a checkpoint record.
+     * <p>
+     * Checkpoints are fuzzy: they write no pages. The checkpoint record
+     * holds the transactions running and the buffer pool's dirty page
+     * table, from which recovery finds where redo must start; the monitors
+     * of the buffer pool and the log are held only while it is taken and
+     * appended. Pages written before that are forced to disk before the
+     * log manifest points to the new checkpoint. The background writer of
+     * the buffer pool writes committed pages meanwhile, which moves the
+     * start of redo forward and lets the log be truncated.
+     *
+     * @see BufferPool#setWriterInterval
+     */
     public void logCheckpoint() throws IOException {
+        synchronized (checkpointLock) {
+            checkpoint();
+        }
+    }
+
+    private void checkpoint() throws IOException {
+        BufferPool pool = Database.getBufferPool();
+        long startCpOffset;
+        long cpLsn;
         //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
+        synchronized (pool) {
             synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
                 preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
+                Map<PageId, Long> dirtyPages = pool.getDirtyPageTable();
+                startCpOffset = buffer.end();
+                startRecord(CHECKPOINT_RECORD, -1); //no tid , but leave space for convenience
 
                 //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
+                record.writeInt(tidToFirstLogRecord.size());
+                for (Map.Entry<Long, Long> e : tidToFirstLogRecord.entrySet()) {
+                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + e.getKey());
+                    record.writeLong(e.getKey());
+                    record.writeLong(e.getValue());
+                    Long last = tidToLastLsn.get(e.getKey());
+                    record.writeLong(last == null ? NO_LSN : last);
                 }
-
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+                //and the dirty page table
+                record.writeInt(dirtyPages.size());
+                for (Map.Entry<PageId, Long> e : dirtyPages.entrySet()) {
+                    record.writeInt(e.getKey().getTableId());
+                    record.writeInt(e.getKey().getPageNumber());
+                    record.writeLong(e.getValue());
+                }
+                cpLsn = endRecord();
             }
         }
 
+        // pages missing from the dirty page table were written before it
+        // was taken, but maybe not forced
+        Iterator<Integer> tables = Database.getCatalog().tableIdIterator();
+        while (tables.hasNext()) {
+            Database.getCatalog().getDatabaseFile(tables.next()).force();
+        }
+        force(cpLsn);
+        pool.saveHotPages();
+
+        synchronized (this) {
+            //once the CP is on disk, make sure the CP location in the
+            // manifest is updated
+            segments.setCheckpoint(startCpOffset);
+            lastCheckpointLsn = cpLsn;
+            lastCheckpointNanos = System.nanoTime();
+        }
+
         logTruncate();
     }
 
+    /**
+     * Reads the body of a checkpoint record.
+     *
+     * @param xactions receives the first record offset and last LSN of each
+     *        running transaction, or null to skip them
+     * @param dirtyPages receives the recLSN of each dirty page, or null
+     */
+    private void readCheckpoint(Map<Long, long[]> xactions, Map<PageId, Long> dirtyPages)
+            throws IOException {
+        int numXactions = segments.readInt();
+        for (int i = 0; i < numXactions; i++) {
+            long tid = segments.readLong();
+            long first = segments.readLong();
+            long last = segments.readLong();
+            if (xactions != null) {
+                xactions.put(tid, new long[] { first, last });
+            }
+        }
+        int numDirty = segments.readInt();
+        for (int i = 0; i < numDirty; i++) {
+            HeapPageId pid = new HeapPageId(segments.readInt(), segments.readInt());
+            long recLsn = segments.readLong();
+            if (dirtyPages != null) {
+                dirtyPages.put(pid, recLsn);
+            }
+        }
+    }
+
     /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
+        consumption.  Records before the last checkpoint, the first
+        record of each transaction it lists and the oldest recLSN of its
+        dirty page table are not needed; the segments holding only such
+        records are recycled, and no record is moved. */
     public synchronized void logTruncate() throws IOException {
         preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
+        writeBuffer();
+        long cpLoc = segments.getCheckpoint();
 
+        if (cpLoc == NO_CHECKPOINT_ID) {
+            return;
+        }
         long minLogRecord = cpLoc;
 
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
+        segments.seek(cpLoc);
+        int cpType = segments.readInt();
+        @SuppressWarnings("unused")
+        long cpTid = segments.readLong();
 
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
-            }
-
-            int numOutstanding = raf.readInt();
-
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
-                }
-            }
+        if (cpType != CHECKPOINT_RECORD) {
+            throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
         }
 
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
-
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
-                }
-
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
-
-            } catch (EOFException e) {
-                break;
-            }
+        HashMap<Long, long[]> xactions = new HashMap<>();
+        HashMap<PageId, Long> dirtyPages = new HashMap<>();
+        readCheckpoint(xactions, dirtyPages);
+        for (long[] x : xactions.values()) {
+            minLogRecord = Math.min(minLogRecord, x[0]);
+        }
+        // redo starts at the oldest recLSN
+        for (long recLsn : dirtyPages.values()) {
+            minLogRecord = Math.min(minLogRecord, recLsn);
         }
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
-
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
+        Debug.log("TRUNCATING LOG;  WAS " + (buffer.end() - segments.getStart()) + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (buffer.end() - minLogRecord));
 
-        currentOffset = raf.getFilePointer();
+        // we can drop everything before minLogRecord
+        segments.truncate(minLogRecord);
         //print();
     }
 
@@ -476,54 +974,92 @@ public class LogFile {
             throws NoSuchElementException, IOException {
         synchronized (Database.getBufferPool()) {
             synchronized(this) {
-
-                if (tidToFirstLogRecord.get(TID) == null) {
+                Long lastLsn = tidToLastLsn.get(TID);
+                if (lastLsn == null) {
                     return;
                 }
-
-                Long firstLogRecord = tidToFirstLogRecord.get(TID);
-                raf.seek(firstLogRecord);
-
-                long initialPointer = raf.getFilePointer();
-                Set<PageId> finished = new HashSet<>();
-
-                while (raf.getFilePointer() < raf.length()) {
-                    int type = raf.readInt();
-                    long record_tid  = raf.readLong();
-                    switch(type) {
-                        case UPDATE_RECORD:
-                            Page before = readPageData(raf);
-                            readPageData(raf);
-                            if (record_tid  == TID) {
-                                PageId pid = before.getId();
-                                if (!finished.contains(pid)) {
-                                    finished.add(pid);
-                                    Database.getBufferPool().discardPage(pid);
-                                    DbFile dbFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
-                                    dbFile.writePage(before);
-                                }
-                            }
-                            break;
-                        case CHECKPOINT_RECORD:
-                            for (int i = 0; i < raf.readInt(); i++) {
-                                raf.seek(raf.getFilePointer() + 2 * LONG_SIZE);
-                            }
-                    }
-                    raf.seek(raf.getFilePointer() + LONG_SIZE);
+                // the pages rolled back are stamped with the LSN of the
+                // ABORT record the caller appends next, so recovery knows
+                // the rollback is on disk once their pageLSN reaches it
+                PageImages images = new PageImages();
+                long stampLsn = buffer.end();
+                for (Map.Entry<PageId, List<Object>> e : readUndoChain(lastLsn).entrySet()) {
+                    images.undo(e.getKey(), e.getValue(), stampLsn, false);
                 }
-                raf.seek(initialPointer);
+                writePages(images);
             }
         }
     }
 
+    /**
+     * Reads the UPDATE and DELTA records of a transaction from the last one
+     * back to the first, following their prevLSNs. Only the records of
+     * the transaction are read; those still in the log buffer are read
+     * from it rather than written out and read back.
+     *
+     * @param lastLsn the LSN of the last record of the transaction
+     * @return the changes to undo for each page, last first: before
+     *         images of UPDATE records and PageDeltas of DELTA records
+     * @see PageImages#undo
+     */
+    private Map<PageId, List<Object>> readUndoChain(long lastLsn) throws IOException {
+        LinkedHashMap<PageId, List<Object>> undo = new LinkedHashMap<>();
+        for (long lsn = lastLsn; lsn != NO_LSN; ) {
+            DataInput in = buffer.reader(lsn);
+            if (in == null) {
+                segments.seek(lsn);
+                in = segments;
+            }
+            int type = in.readInt();
+            in.readLong();
+            lsn = in.readLong();
+            Object change;
+            PageId pid;
+            if (type == DELTA_RECORD) {
+                PageDelta delta = PageDelta.read(in);
+                change = delta;
+                pid = delta.getPageId();
+            } else if (type == UPDATE_RECORD) {
+                Page before = readPageData(in);
+                change = before;
+                pid = before.getId();
+            } else {
+                throw new IOException("bad undo chain: record type " + type);
+            }
+            List<Object> changes = undo.get(pid);
+            if (changes == null) {
+                changes = new ArrayList<>();
+                undo.put(pid, changes);
+            }
+            changes.add(change);
+        }
+        return undo;
+    }
+
+    /** Writes the pages of a rollback or recovery and forces their files. */
+    private void writePages(PageImages images) throws IOException {
+        Set<DbFile> written = new HashSet<>();
+        images.writeAll(written);
+        for (DbFile file : written) {
+            file.force();
+        }
+    }
+
     /** Shutdown the logging system, writing out whatever state
         is necessary so that start up can happen quickly (without
         extensive recovery.)
     */
-    public synchronized void shutdown() {
+    public void shutdown() {
         try {
+            checkpointInterval = 0;
+            checkpointLogBytes = 0;
+            // checkpoints are fuzzy: write the committed pages first, so
+            // that there is little to redo at startup
+            Database.getBufferPool().writeCommittedPages(Integer.MAX_VALUE);
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            synchronized (this) {
+                segments.close();
+            }
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -533,87 +1069,199 @@ public class LogFile {
     /** Recover the database system by ensuring that the updates of
         committed transactions are installed and that the
         updates of uncommitted transactions are not installed.
+        <p>
+        Recovery runs in three passes. Analysis scans the log from the
+        last checkpoint to find the transactions that never finished and
+        the pages that may have changes newer than their pages on disk,
+        with the LSN of the first such change (the dirty page table).
+        Redo repeats history from the oldest of those LSNs, skipping
+        records whose page on disk already holds them according to its
+        pageLSN, and repeats the rollback of each aborted transaction at
+        its ABORT record; its changes are applied by getRedoThreads()
+        workers, each of which owns the pages that hash to it. Undo then rolls back the unfinished transactions
+        along their prevLSN chains and logs an ABORT record for each.
     */
     public void recover() throws IOException {
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
                 recoveryUndecided = false;
-                // some code goes here
-                //
-                // print();
-                long initialPointer = raf.getFilePointer();
-                raf.seek(0);
-                long lastCKPTPointer = raf.readLong();
-                Set<Long> activeTID = new HashSet<>();
-
-                if (lastCKPTPointer != -1){
-                    raf.seek(lastCKPTPointer);
-
-                    assert (raf.readInt() == CHECKPOINT_RECORD);
-                    raf.readLong();
-                    int alive = raf.readInt();
-                    for (int i = 1; i <= alive; i++){
-                        long TID = raf.readLong();
-                        activeTID.add(TID);
-                        tidToFirstLogRecord.put(TID, raf.readLong());
-                    }
-                    assert (raf.readLong() == lastCKPTPointer);
-                }
-
-                while (raf.getFilePointer() < raf.length()) {
-                    int type = raf.readInt();
-                    long TID = raf.readLong();
+                writeBuffer();
+                long lastCKPTPointer = segments.getCheckpoint();
+                long end = buffer.end();
+                tidToFirstLogRecord.clear();
+                tidToLastLsn.clear();
+                tidToLogBytes.clear();
+
+                // analysis
+                HashMap<PageId, Long> dirtyPages = new HashMap<>();
+                HashMap<Long, Long> abortedLastLsn = new HashMap<>();
+                long redoFrom = Long.MAX_VALUE;
+                segments.seek(lastCKPTPointer != NO_CHECKPOINT_ID ? lastCKPTPointer : segments.getStart());
+                while (segments.getFilePointer() < end) {
+                    long lsn = segments.getFilePointer();
+                    int type = segments.readInt();
+                    long TID = segments.readLong();
                     switch (type) {
                         case UPDATE_RECORD:
-                            activeTID.add(TID);
-                            Page before = readPageData(raf);
-                            Database.getBufferPool().discardPage(before.getId());
-                            HeapFile hf = (HeapFile)Database.getCatalog().getDatabaseFile(before.getId().getTableId());
-                            hf.writePage(readPageData(raf));
-                            tidToFirstLogRecord.put(TID, raf.readLong());
+                        case DELTA_RECORD:
+                            segments.readLong();
+                            PageId pid = type == DELTA_RECORD
+                                ? PageDelta.read(segments).getPageId() : skipUpdate();
+                            if (!dirtyPages.containsKey(pid)) {
+                                dirtyPages.put(pid, lsn);
+                                redoFrom = Math.min(redoFrom, lsn);
+                            }
+                            if (tidToFirstLogRecord.containsKey(TID)) {
+                                tidToLastLsn.put(TID, lsn);
+                            }
                             break;
 
-                        case COMMIT_RECORD:
                         case ABORT_RECORD:
-                            activeTID.remove(TID);
-                            raf.readLong();
+                            Long last = tidToLastLsn.remove(TID);
+                            if (last != null) {
+                                abortedLastLsn.put(lsn, last);
+                                redoFrom = Math.min(redoFrom, lsn);
+                            }
+                            tidToFirstLogRecord.remove(TID);
+                            break;
+
+                        case COMMIT_RECORD:
+                            tidToLastLsn.remove(TID);
+                            tidToFirstLogRecord.remove(TID);
                             break;
 
                         case BEGIN_RECORD:
-                            activeTID.add(TID);
-                            tidToFirstLogRecord.put(TID, raf.readLong());
+                            tidToFirstLogRecord.put(TID, lsn);
+                            break;
+
+                        case CHECKPOINT_RECORD:
+                            HashMap<Long, long[]> xactions = new HashMap<>();
+                            HashMap<PageId, Long> cpDirtyPages = new HashMap<>();
+                            readCheckpoint(xactions, cpDirtyPages);
+                            for (Map.Entry<Long, long[]> x : xactions.entrySet()) {
+                                tidToFirstLogRecord.put(x.getKey(), x.getValue()[0]);
+                                if (x.getValue()[1] != NO_LSN) {
+                                    tidToLastLsn.put(x.getKey(), x.getValue()[1]);
+                                }
+                            }
+                            // changes before the checkpoint that may not
+                            // be on disk
+                            for (Map.Entry<PageId, Long> d : cpDirtyPages.entrySet()) {
+                                dirtyPages.put(d.getKey(), d.getValue());
+                                redoFrom = Math.min(redoFrom, d.getValue());
+                            }
+                            break;
                     }
+                    segments.readLong();
                 }
 
-                for(long tid: activeTID){
-                    rollback(tid);
+                // redo: changes to different pages are independent, so
+                // each page is redone by the worker it hashes to
+                ParallelRedo redo = new ParallelRedo(redoThreads);
+                try {
+                    long lsn = Math.min(redoFrom, end);
+                    while (lsn < end) {
+                        segments.seek(lsn);
+                        int type = segments.readInt();
+                        segments.readLong();
+                        if (type == UPDATE_RECORD || type == DELTA_RECORD) {
+                            segments.readLong();
+                            PageDelta delta = null;
+                            Page after = null;
+                            PageId pid;
+                            if (type == DELTA_RECORD) {
+                                delta = PageDelta.read(segments);
+                                pid = delta.getPageId();
+                            } else {
+                                readPageData(segments);
+                                after = readPageData(segments);
+                                pid = after.getId();
+                            }
+                            Long recLsn = dirtyPages.get(pid);
+                            if (recLsn != null && lsn >= recLsn) {
+                                redo.redo(pid, lsn, delta, after == null ? null : after.getPageData());
+                            }
+                        } else if (type == CHECKPOINT_RECORD) {
+                            readCheckpoint(null, null);
+                        }
+                        segments.readLong();
+                        long next = segments.getFilePointer();
+                        if (type == ABORT_RECORD && abortedLastLsn.containsKey(lsn)) {
+                            // readUndoChain moves the read position
+                            for (Map.Entry<PageId, List<Object>> e
+                                     : readUndoChain(abortedLastLsn.get(lsn)).entrySet()) {
+                                redo.undo(e.getKey(), e.getValue(), lsn);
+                            }
+                        }
+                        lsn = next;
+                    }
+                } finally {
+                    redo.finish();
                 }
 
-                raf.seek(initialPointer);
+                // undo
+                for (Map.Entry<Long, Long> loser : tidToLastLsn.entrySet()) {
+                    long stampLsn = buffer.end();
+                    for (Map.Entry<PageId, List<Object>> e : readUndoChain(loser.getValue()).entrySet()) {
+                        redo.images(e.getKey()).undo(e.getKey(), e.getValue(), stampLsn, false);
+                    }
+                    startRecord(ABORT_RECORD, loser.getKey());
+                    endRecord();
+                }
+                for (long tid : tidToFirstLogRecord.keySet()) {
+                    if (!tidToLastLsn.containsKey(tid)) {
+                        startRecord(ABORT_RECORD, tid);
+                        endRecord();
+                    }
+                }
+                force();
+                Set<DbFile> written = new HashSet<>();
+                redo.writeAll(written);
+                for (DbFile file : written) {
+                    file.force();
+                }
+                tidToFirstLogRecord.clear();
+                tidToLastLsn.clear();
+                tidToLogBytes.clear();
             }
          }
     }
 
+    /** Reads the before and after images of an UPDATE record and returns their page id. */
+    private PageId skipUpdate() throws IOException {
+        Page before = readPageData(segments);
+        readPageData(segments);
+        return before.getId();
+    }
+
     /** Print out a human readable represenation of the log */
-    public void print() throws IOException {
+    public synchronized void print() throws IOException {
         // some code goes here
-        System.out.println("file length: " + raf.length());
-        long initialPointer = raf.getFilePointer();
-        raf.seek(0);
-        long lastCKPT = raf.readLong();
+        writeBuffer();
+        long end = buffer.end();
+        System.out.println("log start: " + segments.getStart() + ", end: " + end);
+        long lastCKPT = segments.getCheckpoint();
         System.out.println("lastCKPT: " + lastCKPT);
+        System.out.println("log id: " + segments.getLogId());
+        segments.seek(segments.getStart());
         if (lastCKPT != -1){
-            raf.seek(lastCKPT);
-            int type = raf.readInt();
+            segments.seek(lastCKPT);
+            int type = segments.readInt();
             assert (type == CHECKPOINT_RECORD);
-            System.out.println("CKPT TID: " + raf.readLong());
-            int alive = raf.readInt();
-            System.out.println(alive + " alive transactions");
-            for (int i = 1; i <= alive; i++){
-                System.out.println("alive transaction " + i + " --- TID: " + raf.readLong() +
-                        ", first record offset: " + raf.readLong());
+            System.out.println("CKPT TID: " + segments.readLong());
+            HashMap<Long, long[]> xactions = new HashMap<>();
+            HashMap<PageId, Long> dirtyPages = new HashMap<>();
+            readCheckpoint(xactions, dirtyPages);
+            System.out.println(xactions.size() + " alive transactions");
+            for (Map.Entry<Long, long[]> x : xactions.entrySet()) {
+                System.out.println("alive transaction --- TID: " + x.getKey() +
+                        ", first record offset: " + x.getValue()[0] + ", last LSN: " + x.getValue()[1]);
+            }
+            System.out.println(dirtyPages.size() + " dirty pages");
+            for (Map.Entry<PageId, Long> d : dirtyPages.entrySet()) {
+                System.out.println("dirty page " + d.getKey() + ", recLSN: " + d.getValue());
             }
-            assert (raf.readLong() == lastCKPT);
+            assert (segments.readLong() == lastCKPT);
         } else {
             System.out.println("no CKPT was found");
         }
@@ -621,39 +1269,125 @@ public class LogFile {
         System.out.println();
         System.out.println("Log after lastCKPT: ");
 
-        while (raf.getFilePointer() < raf.length()) {
-            int type = raf.readInt();
-            long TID = raf.readLong();
+        while (segments.getFilePointer() < end) {
+            int type = segments.readInt();
+            long TID = segments.readLong();
             switch (type) {
                 case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    readPageData(raf);
-                    long logOffset = raf.readLong();
+                    long prevLsn = segments.readLong();
+                    Page before = readPageData(segments);
+                    readPageData(segments);
+                    long logOffset = segments.readLong();
                     System.out.println("UPDATE, TID: " + TID + ", page ID: " +
-                            before.getId() + ", log offset: " + logOffset);
+                            before.getId() + ", prev LSN: " + prevLsn + ", log offset: " + logOffset);
+                    break;
+
+                case DELTA_RECORD:
+                    prevLsn = segments.readLong();
+                    PageDelta delta = PageDelta.read(segments);
+                    logOffset = segments.readLong();
+                    System.out.println("DELTA, TID: " + TID + ", page ID: " + delta.getPageId() +
+                            ", bytes: " + delta.changedBytes() + ", prev LSN: " + prevLsn +
+                            ", log offset: " + logOffset);
                     break;
 
                 case ABORT_RECORD:
-                    logOffset = raf.readLong();
+                    logOffset = segments.readLong();
                     System.out.println("ABORT, TID: " + TID + ", log offset: " + logOffset);
                     break;
 
                 case COMMIT_RECORD:
-                    logOffset = raf.readLong();
+                    logOffset = segments.readLong();
                     System.out.println("COMMIT, TID: " + TID + ", log offset: " + logOffset);
                     break;
 
                 case BEGIN_RECORD:
-                    logOffset = raf.readLong();
+                    logOffset = segments.readLong();
                     System.out.println("BEGIN, TID: " + TID + ", log offset: " + logOffset);
                     break;
             }
         }
-        raf.seek(initialPointer);
     }
 
-    public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+    /** Forces every record appended so far to disk. */
+    public void force() throws IOException {
+        long lsn;
+        synchronized (this) {
+            // the last byte of the log, which is durable once it is forced
+            lsn = buffer.end() - 1;
+        }
+        force(lsn);
+    }
+
+    /**
+     * Forces the record with the specified LSN, and every record before it,
+     * to disk. Returns right away if they already are; otherwise writes the
+     * log buffer up to the end of that record, but no further, and forces
+     * the segments written. They are forced without holding the monitor of this log,
+     * so other threads can keep appending meanwhile. One thread forces at a
+     * time: the others wait for it, and return if it forced their record.
+     *
+     * @param lsn the LSN of a record, as returned by e.g. logWrite
+     */
+    public void force(long lsn) throws IOException {
+        long durable;
+        List<FileChannel> channels;
+        boolean interrupted = false;
+        synchronized (this) {
+            try {
+                while (forcing && lsn >= flushedLsn) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        // the force is already under way; finish waiting
+                        interrupted = true;
+                    }
+                }
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (lsn < flushedLsn) {
+                return;
+            }
+            buffer.writeTo(segments, buffer.endOfRecord(lsn));
+            durable = buffer.start();
+            channels = segments.takeUnforced();
+            forcing = true;
+        }
+        boolean forced = false;
+        try {
+            for (FileChannel channel : channels) {
+                try {
+                    channel.force(false);
+                } catch (ClosedChannelException e) {
+                    // the segment was recycled meanwhile; its records were
+                    // forced before the checkpoint that let it go
+                }
+            }
+            forced = true;
+        } finally {
+            synchronized (this) {
+                forcing = false;
+                if (forced) {
+                    flushedLsn = Math.max(flushedLsn, durable);
+                } else {
+                    segments.returnUnforced(channels);
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    /** Returns the LSN before which every record is on disk. */
+    public synchronized long getFlushedLsn() {
+        return flushedLsn;
+    }
+
+    /** Returns the LSN the next record will get. */
+    public synchronized long getNextLsn() {
+        return buffer.end();
     }
 
 }
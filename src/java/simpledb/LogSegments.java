@@ -0,0 +1,491 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * LogSegments stores the log in segment files of a fixed size, addressed
+ * by LSN: segment i holds the LSNs from i * segmentSize up to (i + 1) *
+ * segmentSize, in a file named after the log file and i. Records may span
+ * segments. A small manifest next to the segments holds the LSN the log
+ * starts at, the LSN of the last checkpoint and the id of the log.
+ * <p>
+ * Truncating the log only moves its start forward in the manifest and
+ * recycles the segments that lie wholly before it: up to
+ * {@link #SPARE_SEGMENTS} of them are renamed to the segments that follow
+ * the end of the log, the others are deleted. Segments are filled with
+ * zeros ahead of the bytes written to them, in extents that double up to
+ * the segment size, so appending seldom grows a file while a short log
+ * keeps small files.
+ * <p>
+ * Recycled segments still hold their old records, and the end of the log
+ * is not stored anywhere. LogFile finds it by reading records from the
+ * last checkpoint until one does not end with its own LSN; an old record
+ * never does, since it was written at a different LSN.
+ * <p>
+ * Reads go through a buffer, and positions work like those of a
+ * RandomAccessFile: {@link #seek} sets where the DataInput methods read.
+ * Not thread safe; LogFile only uses it while holding its monitor.
+ */
+class LogSegments implements DataInput, Closeable {
+
+    private static final int MAGIC = 0x53454731; // "SEG1"
+
+    /** Recycled segments kept ahead of the end of the log. */
+    static final int SPARE_SEGMENTS = 2;
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final byte[] ZEROS = new byte[64 * 1024];
+
+    private final File base;
+    private final File manifest;
+    private long segmentSize;
+
+    private long start;
+    private long checkpoint = -1;
+    private long logId;
+    private boolean loaded;
+
+    /** Bytes written so far end here; see {@link #length}. */
+    private long length;
+
+    /** The segment files, open or not, by index. */
+    private final TreeMap<Long, File> segments = new TreeMap<>();
+    private final TreeMap<Long, FileChannel> channels = new TreeMap<>();
+    /** The bytes filled so far of the segments with an open channel, by index. */
+    private final TreeMap<Long, Long> filled = new TreeMap<>();
+    private final Set<FileChannel> unforced = new HashSet<>();
+
+    private long pos;
+    private final byte[] readBuffer = new byte[READ_BUFFER_SIZE];
+    private long readBufferStart;
+    private int readBufferLength;
+
+    private final DataInputStream in = new DataInputStream(new InputStream() {
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            return LogSegments.this.read(b, off, len);
+        }
+    });
+
+    /**
+     * Opens the segments of the specified log file, loading its manifest if
+     * there is a valid one.
+     *
+     * @param file the log file; segments and manifest are named after it
+     * @param segmentSize the size of new segments, unless the manifest was
+     *        written with another size
+     */
+    LogSegments(File file, long segmentSize) throws IOException {
+        this.base = file.getAbsoluteFile();
+        this.manifest = new File(base.getPath() + ".manifest");
+        this.segmentSize = segmentSize;
+
+        if (manifest.exists()) {
+            try (DataInputStream m = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(manifest)))) {
+                if (m.readInt() == MAGIC) {
+                    this.segmentSize = m.readLong();
+                    logId = m.readLong();
+                    start = m.readLong();
+                    checkpoint = m.readLong();
+                    loaded = true;
+                }
+            } catch (IOException e) {
+                // a damaged manifest is the same as no log
+                loaded = false;
+            }
+        }
+
+        String prefix = base.getName() + ".";
+        File[] files = base.getParentFile().listFiles();
+        if (files != null) {
+            for (File f : files) {
+                String name = f.getName();
+                if (name.startsWith(prefix) && name.length() == prefix.length() + 12) {
+                    try {
+                        segments.put(Long.parseLong(name.substring(prefix.length())), f);
+                    } catch (NumberFormatException e) {
+                        // not a segment
+                    }
+                }
+            }
+        }
+        if (!loaded) {
+            start = segments.isEmpty() ? 0 : (segments.lastKey() + 1) * this.segmentSize;
+            checkpoint = -1;
+        }
+        length = start;
+    }
+
+    /** Returns whether a manifest was found, that is, whether there is a log. */
+    boolean exists() {
+        return loaded;
+    }
+
+    long getSegmentSize() {
+        return segmentSize;
+    }
+
+    /** Returns the LSN of the first record of the log. */
+    long getStart() {
+        return start;
+    }
+
+    /** Returns the LSN of the last checkpoint, or -1 if there is none. */
+    long getCheckpoint() {
+        return checkpoint;
+    }
+
+    long getLogId() {
+        return logId;
+    }
+
+    /** Returns the end of the bytes written so far. */
+    long length() {
+        return length;
+    }
+
+    /**
+     * Sets the end of the bytes written so far, once LogFile found the end
+     * of the log.
+     */
+    void setLength(long length) {
+        this.length = length;
+    }
+
+    /** Returns the end of the last segment file; nothing can be read past it. */
+    long limit() {
+        return segments.isEmpty() ? start : (segments.lastKey() + 1) * segmentSize;
+    }
+
+    /** Records the LSN of the last checkpoint in the manifest. */
+    void setCheckpoint(long lsn) throws IOException {
+        checkpoint = lsn;
+        writeManifest();
+    }
+
+    /**
+     * Starts a new, empty log with the specified id. It starts at a segment
+     * that never existed, so no record of the old log can be taken for one
+     * of the new log; the old segments are recycled.
+     *
+     * @return the LSN the new log starts at
+     */
+    long reset(long logId) throws IOException {
+        long first = segments.isEmpty() ? start / segmentSize : segments.lastKey() + 1;
+        first = Math.max(first, start / segmentSize + 1);
+        ArrayList<Long> old = new ArrayList<>(segments.keySet());
+        closeChannels();
+        for (long index : old) {
+            recycle(index, first);
+        }
+        this.logId = logId;
+        this.start = first * segmentSize;
+        this.checkpoint = -1;
+        this.length = start;
+        this.loaded = true;
+        readBufferLength = 0;
+        writeManifest();
+        return start;
+    }
+
+    /**
+     * Moves the start of the log forward to the specified LSN, recycling
+     * the segments before the one it is in.
+     */
+    void truncate(long lsn) throws IOException {
+        if (lsn <= start) {
+            return;
+        }
+        start = lsn;
+        readBufferLength = 0;
+        // the manifest must not point before a segment that is gone
+        writeManifest();
+        long firstKept = lsn / segmentSize;
+        ArrayList<Long> old = new ArrayList<>(segments.headMap(firstKept).keySet());
+        for (long index : old) {
+            FileChannel ch = channels.remove(index);
+            filled.remove(index);
+            if (ch != null) {
+                unforced.remove(ch);
+                ch.close();
+            }
+            recycle(index, index + 1);
+        }
+    }
+
+    /**
+     * Renames a segment to the first free index at or after the specified
+     * one, if fewer than SPARE_SEGMENTS segments follow the end of the log;
+     * deletes it otherwise.
+     */
+    private void recycle(long index, long from) throws IOException {
+        File f = segments.remove(index);
+        // the segment holding the last byte written
+        long endIndex = (Math.max(start, length) - 1) / segmentSize;
+        if (segments.tailMap(endIndex, false).size() >= SPARE_SEGMENTS) {
+            f.delete();
+            return;
+        }
+        long to = Math.max(from, endIndex + 1);
+        while (segments.containsKey(to)) {
+            to++;
+        }
+        File target = segmentFile(to);
+        Files.move(f.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        segments.put(to, target);
+    }
+
+    private File segmentFile(long index) {
+        return new File(String.format("%s.%012d", base.getPath(), index));
+    }
+
+    private void writeManifest() throws IOException {
+        File tmp = new File(manifest.getPath() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(MAGIC);
+            out.writeLong(segmentSize);
+            out.writeLong(logId);
+            out.writeLong(start);
+            out.writeLong(checkpoint);
+            out.flush();
+            fos.getFD().sync();
+        }
+        Files.move(tmp.toPath(), manifest.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Returns the channel of a segment, creating the segment if needed: a
+     * recycled one if there is a spare with a higher index (renamed to
+     * this one), otherwise a new file with a first extent of zeros.
+     */
+    private FileChannel channel(long index, boolean create) throws IOException {
+        FileChannel ch = channels.get(index);
+        if (ch != null) {
+            return ch;
+        }
+        File f = segments.get(index);
+        if (f == null) {
+            if (!create) {
+                throw new EOFException("no log segment " + index);
+            }
+            f = segmentFile(index);
+            try (FileChannel fill = FileChannel.open(f.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                fill(fill, 0, Math.min(segmentSize, ZEROS.length));
+            }
+            segments.put(index, f);
+        }
+        ch = FileChannel.open(f.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        channels.put(index, ch);
+        filled.put(index, ch.size());
+        return ch;
+    }
+
+    /**
+     * Makes sure the segment with the specified channel is filled with
+     * zeros up to the specified offset, doubling the bytes filled so far
+     * or going up to the segment size.
+     */
+    private void fillTo(long index, FileChannel ch, long end) throws IOException {
+        long size = filled.get(index);
+        if (end <= size) {
+            return;
+        }
+        long to = Math.min(segmentSize, Math.max(end, size * 2));
+        fill(ch, size, to);
+        filled.put(index, to);
+    }
+
+    /** Writes zeros from one offset of a segment to another, and forces them. */
+    private static void fill(FileChannel ch, long from, long to) throws IOException {
+        for (long p = from; p < to; p += ZEROS.length) {
+            int n = (int) Math.min(ZEROS.length, to - p);
+            ByteBuffer zeros = ByteBuffer.wrap(ZEROS, 0, n);
+            while (zeros.hasRemaining()) {
+                ch.write(zeros, p + n - zeros.remaining());
+            }
+        }
+        ch.force(true);
+    }
+
+    /**
+     * Writes bytes at the specified LSN, which must not be before the end of
+     * the bytes written so far. They are on disk after the next
+     * {@link #force}.
+     */
+    void write(long lsn, byte[] b, int off, int len) throws IOException {
+        readBufferLength = 0;
+        while (len > 0) {
+            long index = lsn / segmentSize;
+            int n = (int) Math.min(len, (index + 1) * segmentSize - lsn);
+            FileChannel ch = channel(index, true);
+            fillTo(index, ch, lsn - index * segmentSize + n);
+            ByteBuffer buf = ByteBuffer.wrap(b, off, n);
+            while (buf.hasRemaining()) {
+                ch.write(buf, lsn - index * segmentSize + (buf.position() - off));
+            }
+            unforced.add(ch);
+            lsn += n;
+            off += n;
+            len -= n;
+        }
+        length = Math.max(length, lsn);
+    }
+
+    /**
+     * Returns the channels of the segments written since the last call, for
+     * the caller to force; LogFile forces them without holding its monitor.
+     */
+    List<FileChannel> takeUnforced() {
+        List<FileChannel> taken = new ArrayList<>(unforced);
+        unforced.clear();
+        return taken;
+    }
+
+    /** Gives back channels from takeUnforced that could not be forced. */
+    void returnUnforced(List<FileChannel> channels) {
+        unforced.addAll(channels);
+    }
+
+    /** Sets the LSN the next read starts at. */
+    void seek(long lsn) {
+        pos = lsn;
+    }
+
+    /** Returns the LSN the next read starts at. */
+    long getFilePointer() {
+        return pos;
+    }
+
+    /** Reads up to len bytes at the current position; -1 past the last segment. */
+    private int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (pos < readBufferStart || pos >= readBufferStart + readBufferLength) {
+            long index = pos / segmentSize;
+            if (!segments.containsKey(index)) {
+                return -1;
+            }
+            FileChannel ch = channel(index, false);
+            long from = pos;
+            if (readBufferLength > 0 && pos < readBufferStart
+                    && readBufferStart - pos < readBuffer.length) {
+                // reading backwards, as along an undo chain: keep the
+                // records before this one in the buffer too
+                from = Math.max(index * segmentSize, readBufferStart - readBuffer.length);
+            }
+            long inSegment = from - index * segmentSize;
+            int n = (int) Math.min(readBuffer.length, segmentSize - inSegment);
+            ByteBuffer buf = ByteBuffer.wrap(readBuffer, 0, n);
+            while (buf.hasRemaining()) {
+                if (ch.read(buf, inSegment + buf.position()) < 0) {
+                    break;
+                }
+            }
+            readBufferStart = from;
+            readBufferLength = buf.position();
+            if (pos >= readBufferStart + readBufferLength) {
+                return -1;
+            }
+        }
+        int n = (int) Math.min(len, readBufferStart + readBufferLength - pos);
+        System.arraycopy(readBuffer, (int) (pos - readBufferStart), b, off, n);
+        pos += n;
+        return n;
+    }
+
+    private void closeChannels() throws IOException {
+        for (FileChannel ch : channels.values()) {
+            ch.close();
+        }
+        channels.clear();
+        filled.clear();
+        unforced.clear();
+    }
+
+    public void close() throws IOException {
+        closeChannels();
+    }
+
+    // DataInput, reading at the current position
+
+    public void readFully(byte[] b) throws IOException {
+        in.readFully(b);
+    }
+
+    public void readFully(byte[] b, int off, int len) throws IOException {
+        in.readFully(b, off, len);
+    }
+
+    public int skipBytes(int n) {
+        pos += n;
+        return n;
+    }
+
+    public boolean readBoolean() throws IOException {
+        return in.readBoolean();
+    }
+
+    public byte readByte() throws IOException {
+        return in.readByte();
+    }
+
+    public int readUnsignedByte() throws IOException {
+        return in.readUnsignedByte();
+    }
+
+    public short readShort() throws IOException {
+        return in.readShort();
+    }
+
+    public int readUnsignedShort() throws IOException {
+        return in.readUnsignedShort();
+    }
+
+    public char readChar() throws IOException {
+        return in.readChar();
+    }
+
+    public int readInt() throws IOException {
+        return in.readInt();
+    }
+
+    public long readLong() throws IOException {
+        return in.readLong();
+    }
+
+    public float readFloat() throws IOException {
+        return in.readFloat();
+    }
+
+    public double readDouble() throws IOException {
+        return in.readDouble();
+    }
+
+    @Deprecated
+    public String readLine() throws IOException {
+        throw new UnsupportedOperationException();
+    }
+
+    public String readUTF() throws IOException {
+        return in.readUTF();
+    }
+}
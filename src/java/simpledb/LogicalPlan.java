@@ -302,6 +302,13 @@ public class LogicalPlan {
             subplanMap.put(table.alias,ss);
             String baseTableName = Database.getCatalog().getTableName(table.t);
             statsMap.put(baseTableName, baseTableStats.get(baseTableName));
+
+            // scan tables that would crowd out the buffer pool through a ring
+            TableStats s = baseTableStats.get(baseTableName);
+            BufferPool bp = Database.getBufferPool();
+            if (s != null && s.numPages() > BufferPool.RING_THRESHOLD * bp.getNumPages()) {
+                ss.setUseRing(true);
+            }
             filterSelectivities.put(table.alias, 1.0);
 
         }
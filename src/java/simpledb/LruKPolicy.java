@@ -0,0 +1,98 @@
+package simpledb;
+
+import java.util.HashMap;
+import java.util.TreeSet;
+
+/**
+ * LRU-K replacement. The victim is the evictable page whose K-th most
+ * recent access is oldest; pages accessed fewer than K times count as
+ * infinitely old and are evicted first, least recently used first. This
+ * keeps pages that are touched once (e.g. by a scan) from pushing out
+ * pages that are used repeatedly.
+ * <p>
+ * Pages are kept in a tree ordered by that distance, so accesses cost
+ * O(log n) rather than O(1).
+ */
+public class LruKPolicy implements ReplacementPolicy {
+
+    private static class Entry implements Comparable<Entry> {
+        final PageId pid;
+        /** Times of the last K accesses; history[0] is the most recent. */
+        final long[] history;
+        int accesses;
+
+        Entry(PageId pid, int k) {
+            this.pid = pid;
+            this.history = new long[k];
+        }
+
+        /** Time of the K-th most recent access, or -1 if there is none. */
+        long kthAccess() {
+            return accesses >= history.length ? history[history.length - 1] : -1;
+        }
+
+        public int compareTo(Entry o) {
+            int c = Long.compare(kthAccess(), o.kthAccess());
+            if (c == 0) c = Long.compare(history[0], o.history[0]);
+            return c;
+        }
+    }
+
+    private final int k;
+    private final HashMap<PageId, Entry> entries = new HashMap<>();
+    private final TreeSet<Entry> order = new TreeSet<>();
+    private long clock = 0;
+
+    /**
+     * Creates an LRU-K policy.
+     *
+     * @param k the number of accesses remembered per page; must be at least 1
+     */
+    public LruKPolicy(int k) {
+        if (k < 1) throw new IllegalArgumentException("k must be at least 1");
+        this.k = k;
+    }
+
+    public synchronized void pageAdded(PageId pid) {
+        Entry e = entries.get(pid);
+        if (e == null) {
+            e = new Entry(pid, k);
+            entries.put(pid, e);
+        } else {
+            order.remove(e);
+        }
+        touch(e);
+    }
+
+    public synchronized void pageAccessed(PageId pid) {
+        Entry e = entries.get(pid);
+        if (e != null) {
+            order.remove(e);
+            touch(e);
+        }
+    }
+
+    /** Records an access to e and (re)inserts it into the order. */
+    private void touch(Entry e) {
+        System.arraycopy(e.history, 0, e.history, 1, e.history.length - 1);
+        e.history[0] = ++clock;
+        e.accesses++;
+        order.add(e);
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        Entry e = entries.remove(pid);
+        if (e != null) {
+            order.remove(e);
+        }
+    }
+
+    public synchronized PageId chooseVictim(Evictable evictable) {
+        for (Entry e : order) {
+            if (evictable.canEvict(e.pid)) {
+                return e.pid;
+            }
+        }
+        return null;
+    }
+}
@@ -7,8 +7,8 @@ package simpledb;
  * Pages may be "dirty", indicating that they have been modified since they
  * were last written out to disk.
  *
- * For recovery purposes, pages MUST have a single constructor of the form:
- *     Page(PageId id, byte[] data)
+ * For recovery purposes, each page type MUST have a {@link PageCodec}
+ * registered with {@link PageCodecs}, which writes its pages to the log.
  */
 public interface Page {
 
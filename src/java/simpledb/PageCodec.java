@@ -0,0 +1,31 @@
+package simpledb;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * PageCodec writes the id and contents of pages of one type to the log and
+ * reads them back, without reflection. Each page type is registered with
+ * {@link PageCodecs} under a small code.
+ *
+ * @see LogFile#writePageData
+ */
+public interface PageCodec {
+
+    /**
+     * Returns the number of bytes {@link #write} writes for the specified
+     * page.
+     */
+    public int size(Page p);
+
+    /** Writes the id and contents of the specified page. */
+    public void write(Page p, DataOutput out) throws IOException;
+
+    /**
+     * Reads a page written by {@link #write}.
+     *
+     * @param size the number of bytes write wrote
+     */
+    public Page read(DataInput in, int size) throws IOException;
+}
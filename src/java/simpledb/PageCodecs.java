@@ -0,0 +1,99 @@
+package simpledb;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * PageCodecs is the registry of the {@link PageCodec} of each page type.
+ * A page image in the log is the code of its page type, the size of its
+ * encoding, then the encoding written by the codec; the size lets the image
+ * be skipped without knowing its type.
+ * <p>
+ * HeapPage is registered under code 1. Code 0 is never used, so that a
+ * zero-filled part of the log is not taken for a page.
+ */
+public class PageCodecs {
+
+    /** Code of HeapPage. */
+    public static final int HEAP_PAGE = 1;
+
+    private static final ConcurrentHashMap<Integer, PageCodec> byCode = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<Class<?>, Integer> byClass = new ConcurrentHashMap<>();
+
+    static {
+        register(HEAP_PAGE, HeapPage.class, HeapPage.CODEC);
+    }
+
+    private PageCodecs() {
+    }
+
+    /**
+     * Registers the codec of a page type.
+     *
+     * @param code the code of the page type in the log; must be positive
+     * @throws IllegalArgumentException if code is not positive, or if the
+     *         code or the page type already has a codec
+     */
+    public static synchronized void register(int code, Class<? extends Page> pageClass, PageCodec codec) {
+        if (code <= 0) {
+            throw new IllegalArgumentException("page type codes must be positive: " + code);
+        }
+        if (byCode.containsKey(code) || byClass.containsKey(pageClass)) {
+            throw new IllegalArgumentException("page type already registered: "
+                    + code + ", " + pageClass.getName());
+        }
+        byCode.put(code, codec);
+        byClass.put(pageClass, code);
+    }
+
+    /**
+     * Returns the codec registered under the specified code, or null if
+     * there is none.
+     */
+    public static PageCodec get(int code) {
+        return byCode.get(code);
+    }
+
+    /** Writes a page image with the codec of its type. */
+    static void write(Page p, DataOutput out) throws IOException {
+        Integer code = byClass.get(p.getClass());
+        if (code == null) {
+            throw new IllegalArgumentException("no codec for " + p.getClass().getName());
+        }
+        PageCodec codec = byCode.get(code);
+        out.writeInt(code);
+        out.writeInt(codec.size(p));
+        codec.write(p, out);
+    }
+
+    /** Reads a page image written by {@link #write}. */
+    static Page read(DataInput in) throws IOException {
+        int code = in.readInt();
+        PageCodec codec = byCode.get(code);
+        if (codec == null) {
+            throw new IOException("unknown page type code " + code);
+        }
+        int size = in.readInt();
+        if (size < 0) {
+            throw new IOException("bad page image size " + size);
+        }
+        return codec.read(in, size);
+    }
+
+    /**
+     * Reads the code and size of a page image written by {@link #write},
+     * leaving the encoding to be skipped.
+     *
+     * @return the size of the encoding, or -1 if the code is unknown or the
+     *         size negative
+     */
+    static int readSize(DataInput in) throws IOException {
+        if (byCode.get(in.readInt()) == null) {
+            return -1;
+        }
+        int size = in.readInt();
+        return size < 0 ? -1 : size;
+    }
+}
@@ -0,0 +1,137 @@
+package simpledb;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * PageDelta is the body of a DELTA log record: the byte ranges in which
+ * two images of a HeapPage differ, with their contents in both images.
+ * Redo copies the after bytes of each range into a page, undo copies the
+ * before bytes. A change to a few tuples takes tens of bytes rather than
+ * the two full pages an UPDATE record holds.
+ * <p>
+ * Deltas of the same page must be redone in log order and undone in
+ * reverse log order.
+ *
+ * @see LogFile#logWrite
+ */
+class PageDelta {
+
+    /**
+     * Ranges separated by at most this many equal bytes are logged as one:
+     * storing the gap twice is cheaper than another range header.
+     */
+    private static final int MERGE_GAP = 4;
+
+    private final HeapPageId pid;
+    private final int[] offsets;
+    private final byte[][] before;
+    private final byte[][] after;
+
+    private PageDelta(HeapPageId pid, int[] offsets, byte[][] before, byte[][] after) {
+        this.pid = pid;
+        this.offsets = offsets;
+        this.before = before;
+        this.after = after;
+    }
+
+    /** Computes the delta between two images of the specified page. */
+    static PageDelta diff(HeapPageId pid, byte[] beforeImage, byte[] afterImage) {
+        ArrayList<int[]> ranges = new ArrayList<>();
+        int i = 0;
+        while (i < afterImage.length) {
+            if (beforeImage[i] == afterImage[i]) {
+                i++;
+                continue;
+            }
+            int start = i;
+            int end = i + 1;
+            // extend the range over differing bytes and short equal gaps
+            for (int j = end; j < afterImage.length && j - end <= MERGE_GAP; j++) {
+                if (beforeImage[j] != afterImage[j]) {
+                    end = j + 1;
+                }
+            }
+            ranges.add(new int[] { start, end });
+            i = end;
+        }
+
+        int[] offsets = new int[ranges.size()];
+        byte[][] before = new byte[ranges.size()][];
+        byte[][] after = new byte[ranges.size()][];
+        for (int r = 0; r < offsets.length; r++) {
+            int start = ranges.get(r)[0];
+            int len = ranges.get(r)[1] - start;
+            offsets[r] = start;
+            before[r] = new byte[len];
+            after[r] = new byte[len];
+            System.arraycopy(beforeImage, start, before[r], 0, len);
+            System.arraycopy(afterImage, start, after[r], 0, len);
+        }
+        return new PageDelta(pid, offsets, before, after);
+    }
+
+    /** Returns the page this delta applies to. */
+    HeapPageId getPageId() {
+        return pid;
+    }
+
+    /** Returns the number of bytes that differ, gaps included. */
+    int changedBytes() {
+        int n = 0;
+        for (byte[] b : after) {
+            n += b.length;
+        }
+        return n;
+    }
+
+    /** Copies the after bytes of each range into a page image. */
+    void redo(byte[] image) {
+        for (int r = 0; r < offsets.length; r++) {
+            System.arraycopy(after[r], 0, image, offsets[r], after[r].length);
+        }
+    }
+
+    /** Copies the before bytes of each range into a page image. */
+    void undo(byte[] image) {
+        for (int r = 0; r < offsets.length; r++) {
+            System.arraycopy(before[r], 0, image, offsets[r], before[r].length);
+        }
+    }
+
+    /**
+     * Writes this delta: table id, page number and number of ranges, then
+     * the offset, length, before bytes and after bytes of each range.
+     */
+    void write(DataOutput out) throws IOException {
+        out.writeInt(pid.getTableId());
+        out.writeInt(pid.getPageNumber());
+        out.writeInt(offsets.length);
+        for (int r = 0; r < offsets.length; r++) {
+            out.writeInt(offsets[r]);
+            out.writeInt(after[r].length);
+            out.write(before[r]);
+            out.write(after[r]);
+        }
+    }
+
+    /** Reads a delta written by {@link #write}. */
+    static PageDelta read(DataInput in) throws IOException {
+        HeapPageId pid = new HeapPageId(in.readInt(), in.readInt());
+        int n = in.readInt();
+        int[] offsets = new int[n];
+        byte[][] before = new byte[n][];
+        byte[][] after = new byte[n][];
+        for (int r = 0; r < n; r++) {
+            offsets[r] = in.readInt();
+            int len = in.readInt();
+            before[r] = new byte[len];
+            after[r] = new byte[len];
+            in.readFully(before[r]);
+            in.readFully(after[r]);
+        }
+        return new PageDelta(pid, offsets, before, after);
+    }
+}
@@ -0,0 +1,118 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * PageImages holds the pages being rolled back or recovered, with their
+ * pageLSNs. Pages are read from disk on first use, bypassing the buffer
+ * pool, and written back by {@link #writeAll}.
+ * <p>
+ * Not thread safe; parallel redo gives each worker its own PageImages for
+ * a disjoint set of pages.
+ *
+ * @see LogFile#recover
+ */
+class PageImages {
+
+    private final HashMap<PageId, byte[]> images = new HashMap<>();
+    private final HashMap<PageId, Long> lsns = new HashMap<>();
+    private final Set<PageId> changed = new HashSet<>();
+
+    /** Returns the image of a page, which callers may change in place. */
+    byte[] get(PageId pid) {
+        byte[] image = images.get(pid);
+        if (image == null) {
+            DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+            image = file.readPage(pid).getPageData();
+            images.put(pid, image);
+        }
+        changed.add(pid);
+        return image;
+    }
+
+    /** Replaces the image of a page. */
+    void put(PageId pid, byte[] image) {
+        images.put(pid, image);
+        changed.add(pid);
+    }
+
+    /** Returns the pageLSN of a page. */
+    long getLsn(PageId pid) {
+        Long lsn = lsns.get(pid);
+        if (lsn == null) {
+            DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+            lsn = file instanceof HeapFile
+                ? ((HeapFile) file).getPageLsn(pid.getPageNumber()) : PageLsnMap.NO_LSN;
+            lsns.put(pid, lsn);
+        }
+        return lsn;
+    }
+
+    void setLsn(PageId pid, long lsn) {
+        lsns.put(pid, lsn);
+    }
+
+    /**
+     * Redoes the change of a log record unless the page already holds it.
+     *
+     * @param lsn the LSN of the record
+     * @param delta the change of a DELTA record, or null
+     * @param after the after image of an UPDATE record, or null
+     */
+    void redo(PageId pid, long lsn, PageDelta delta, byte[] after) {
+        if (getLsn(pid) >= lsn) {
+            return;
+        }
+        if (delta != null) {
+            delta.redo(get(pid));
+        } else {
+            put(pid, after);
+        }
+        setLsn(pid, lsn);
+    }
+
+    /**
+     * Undoes the changes of one transaction to a page and stamps the page
+     * with the specified LSN.
+     *
+     * @param changes the changes, last first: before images (Page) of
+     *        UPDATE records and PageDeltas of DELTA records
+     * @param stampLsn the LSN that marks the undo as done
+     * @param skipApplied whether to leave the page alone if its pageLSN
+     *        shows the undo is on it already
+     */
+    void undo(PageId pid, List<Object> changes, long stampLsn, boolean skipApplied) {
+        if (skipApplied && getLsn(pid) >= stampLsn) {
+            return;
+        }
+        for (Object change : changes) {
+            if (change instanceof PageDelta) {
+                ((PageDelta) change).undo(get(pid));
+            } else {
+                put(pid, ((Page) change).getPageData());
+            }
+        }
+        setLsn(pid, stampLsn);
+    }
+
+    /**
+     * Writes the changed pages straight to their files, dropping any cached
+     * versions. The files written to are added to the specified set; the
+     * caller must force them.
+     */
+    void writeAll(Set<DbFile> written) throws IOException {
+        for (PageId pid : changed) {
+            Database.getBufferPool().discardPage(pid);
+            DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+            HeapPage page = new HeapPage((HeapPageId) pid, images.get(pid));
+            page.setLsn(getLsn(pid));
+            file.writePage(page);
+            written.add(file);
+        }
+        changed.clear();
+    }
+}
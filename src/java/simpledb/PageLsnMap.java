@@ -0,0 +1,118 @@
+package simpledb;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * PageLsnMap records the pageLSN of each page of a HeapFile: the LSN of the
+ * last log record whose change the page on disk holds. Recovery redoes a
+ * record only if it is newer than the pageLSN of its page.
+ * <p>
+ * The map is saved next to the heap file, but only after the heap file was
+ * forced, so a saved pageLSN never claims a change that is not on disk; it
+ * can only lag behind, which makes recovery redo records whose changes are
+ * already there. That is harmless, since redo sets bytes to the values they
+ * had after the record. For the same reason a damaged map, or one saved
+ * while a different log was in use, is the same as no map.
+ *
+ * @see LogFile#recover
+ * @Threadsafe
+ */
+public class PageLsnMap {
+
+    private static final int MAGIC = 0x4c534e31; // "LSN1"
+
+    /** pageLSN of pages that have no recorded one. */
+    public static final long NO_LSN = -1;
+
+    private final File file;
+    private final long logId;
+    /** lsns[i] is the pageLSN of page i; pages past the end have none. */
+    private long[] lsns = new long[0];
+    private boolean dirty = false;
+
+    /**
+     * Creates a map stored in the specified file, loading its contents if
+     * the file exists and was saved for the same log.
+     *
+     * @param file the file this map is saved to
+     * @param logId the id of the log the LSNs refer to
+     * @see LogFile#getLogId
+     */
+    public PageLsnMap(File file, long logId) {
+        this.file = file;
+        this.logId = logId;
+        if (!file.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readLong() != logId) {
+                return;
+            }
+            long[] loaded = new long[in.readInt()];
+            for (int i = 0; i < loaded.length; i++) {
+                loaded[i] = in.readLong();
+            }
+            lsns = loaded;
+        } catch (IOException e) {
+            // a damaged map is the same as no map
+            lsns = new long[0];
+        }
+    }
+
+    /** Returns the id of the log the LSNs of this map refer to. */
+    public long getLogId() {
+        return logId;
+    }
+
+    /** Returns the pageLSN of the specified page, or NO_LSN. */
+    public synchronized long get(int pageNo) {
+        return pageNo < lsns.length ? lsns[pageNo] : NO_LSN;
+    }
+
+    /**
+     * Records the pageLSN of a page that was just written. It is saved by
+     * the next {@link #save} whose snapshot was taken after this call.
+     */
+    public synchronized void set(int pageNo, long lsn) {
+        if (pageNo >= lsns.length) {
+            int length = Math.max(pageNo + 1, lsns.length * 2);
+            int old = lsns.length;
+            lsns = Arrays.copyOf(lsns, length);
+            Arrays.fill(lsns, old, length, NO_LSN);
+        }
+        if (lsns[pageNo] != lsn) {
+            lsns[pageNo] = lsn;
+            dirty = true;
+        }
+    }
+
+    /**
+     * Returns a copy of the map to save once the pages written so far are on
+     * disk, or null if nothing changed since the last snapshot.
+     */
+    public synchronized long[] snapshot() {
+        if (!dirty) {
+            return null;
+        }
+        dirty = false;
+        return lsns.clone();
+    }
+
+    /**
+     * Saves a snapshot. The caller must have forced the heap file after
+     * taking the snapshot.
+     */
+    public void save(long[] snapshot) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeLong(logId);
+            out.writeInt(snapshot.length);
+            for (long lsn : snapshot) {
+                out.writeLong(lsn);
+            }
+        }
+    }
+}
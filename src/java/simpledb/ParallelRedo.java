@@ -0,0 +1,162 @@
+package simpledb;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * ParallelRedo applies the redo pass of recovery on several threads. The
+ * thread reading the log hands each change to the worker its page hashes
+ * to; a worker applies the changes it gets in the order it got them, to
+ * its own {@link PageImages}. Changes to one page are thus applied in log
+ * order, while pages of different workers are read and changed
+ * concurrently.
+ * <p>
+ * The work of each worker is bounded by a queue of
+ * {@link #QUEUE_CAPACITY} changes, so a long log tail is not held in
+ * memory at once.
+ *
+ * @see LogFile#recover
+ */
+class ParallelRedo {
+
+    /** Changes waiting for each worker before the log reader blocks. */
+    static final int QUEUE_CAPACITY = 1024;
+
+    /** A change to one page: a record to redo or a rollback to repeat. */
+    private static class Change {
+        final PageId pid;
+        final long lsn;
+        final PageDelta delta;
+        final byte[] after;
+        final List<Object> undo;
+
+        Change(PageId pid, long lsn, PageDelta delta, byte[] after, List<Object> undo) {
+            this.pid = pid;
+            this.lsn = lsn;
+            this.delta = delta;
+            this.after = after;
+            this.undo = undo;
+        }
+    }
+
+    /** Tells a worker that no more changes follow. */
+    private static final Change END = new Change(null, 0, null, null, null);
+
+    private final PageImages[] images;
+    private final List<BlockingQueue<Change>> queues;
+    private final Thread[] workers;
+    private volatile Throwable failure;
+
+    /** Starts the specified number of workers. */
+    ParallelRedo(int threads) {
+        threads = Math.max(1, threads);
+        images = new PageImages[threads];
+        queues = new ArrayList<>(threads);
+        workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            final PageImages partition = new PageImages();
+            final BlockingQueue<Change> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+            images[i] = partition;
+            queues.add(queue);
+            workers[i] = new Thread("LogFile redo " + i) {
+                public void run() {
+                    try {
+                        for (Change c = queue.take(); c != END; c = queue.take()) {
+                            // after a failure keep draining, so the reader
+                            // never blocks on a full queue
+                            if (failure != null) {
+                                continue;
+                            }
+                            try {
+                                if (c.undo != null) {
+                                    partition.undo(c.pid, c.undo, c.lsn, true);
+                                } else {
+                                    partition.redo(c.pid, c.lsn, c.delta, c.after);
+                                }
+                            } catch (Throwable t) {
+                                failure = t;
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        failure = e;
+                    }
+                }
+            };
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    /** Returns the images of the worker the specified page belongs to. */
+    PageImages images(PageId pid) {
+        return images[(pid.hashCode() & Integer.MAX_VALUE) % images.length];
+    }
+
+    private void submit(Change c) throws IOException {
+        if (failure != null) {
+            throw failed();
+        }
+        try {
+            queues.get((c.pid.hashCode() & Integer.MAX_VALUE) % queues.size()).put(c);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("interrupted during redo");
+        }
+    }
+
+    /**
+     * Redoes a log record unless its page already holds it.
+     *
+     * @see PageImages#redo
+     */
+    void redo(PageId pid, long lsn, PageDelta delta, byte[] after) throws IOException {
+        submit(new Change(pid, lsn, delta, after, null));
+    }
+
+    /**
+     * Repeats the rollback of a page by an aborted transaction, unless its
+     * pageLSN shows the rollback is on it already.
+     *
+     * @param abortLsn the LSN of the ABORT record of the transaction
+     * @see PageImages#undo
+     */
+    void undo(PageId pid, List<Object> changes, long abortLsn) throws IOException {
+        submit(new Change(pid, abortLsn, null, null, changes));
+    }
+
+    /**
+     * Waits for the workers to apply every change submitted. The images
+     * may be used by the calling thread afterwards.
+     */
+    void finish() throws IOException {
+        try {
+            for (BlockingQueue<Change> queue : queues) {
+                queue.put(END);
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("interrupted during redo");
+        }
+        if (failure != null) {
+            throw failed();
+        }
+    }
+
+    private IOException failed() {
+        return failure instanceof IOException
+            ? (IOException) failure : new IOException("redo failed", failure);
+    }
+
+    /** Writes the pages of every worker; see {@link PageImages#writeAll}. */
+    void writeAll(Set<DbFile> written) throws IOException {
+        for (PageImages partition : images) {
+            partition.writeAll(written);
+        }
+    }
+}
@@ -599,6 +599,11 @@ public class Parser {
     static final int SLEEP_TIME = 1000;
 
     protected void shutdown() {
+        try {
+            Database.getBufferPool().saveHotPages();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
         System.out.println("Bye");
     }
 
@@ -609,6 +614,24 @@ public class Parser {
         Database.getCatalog().loadSchema(argv[0]);
         TableStats.computeStatistics();
 
+        // reload the pages that were cached when the database last stopped
+        BufferPool bufferPool = Database.getBufferPool();
+        if (bufferPool.getHotPageFile() == null) {
+            File dir = new File(argv[0]).getAbsoluteFile().getParentFile();
+            bufferPool.setHotPageFile(new File(dir, "hotpages"));
+        }
+        bufferPool.prewarm();
+        // write committed pages in the background and checkpoint regularly,
+        // so that a restart has little log to redo
+        if (bufferPool.getWriterInterval() == 0) {
+            bufferPool.setWriterInterval(1000);
+        }
+        LogFile log = Database.getLogFile();
+        if (log.getCheckpointInterval() == 0 && log.getCheckpointLogBytes() == 0) {
+            log.setCheckpointInterval(60 * 1000);
+            log.setCheckpointLogBytes(64 << 20);
+        }
+
         String queryFile = null;
 
         if (argv.length > 1) {
@@ -0,0 +1,47 @@
+package simpledb;
+
+/**
+ * ReplacementPolicy decides which resident page BufferPool evicts when it
+ * needs a free frame. BufferPool tells the policy about every page that
+ * enters, is accessed in, or leaves the pool; the policy never evicts
+ * anything itself.
+ * <p>
+ * Implementations must be thread safe.
+ *
+ * @see BufferPool#BufferPool(int, ReplacementPolicy)
+ */
+public interface ReplacementPolicy {
+
+    /**
+     * Filter used by {@link #chooseVictim} to skip pages that must not be
+     * evicted (e.g. dirty pages under NO STEAL).
+     */
+    public interface Evictable {
+        boolean canEvict(PageId pid);
+    }
+
+    /** Records that the specified page was read into the pool. */
+    public void pageAdded(PageId pid);
+
+    /** Records an access to a page that was already in the pool. */
+    public void pageAccessed(PageId pid);
+
+    /** Records that the specified page left the pool. */
+    public void pageRemoved(PageId pid);
+
+    /**
+     * Picks the page that should be evicted next among the resident pages
+     * accepted by the filter. The page stays tracked until
+     * {@link #pageRemoved} is called for it.
+     *
+     * @return the victim, or null if no resident page is evictable
+     */
+    public PageId chooseVictim(Evictable evictable);
+
+    /**
+     * Records that the pool now holds up to the specified number of pages.
+     * Policies that do not depend on the size of the pool ignore it.
+     */
+    public default void resize(int numPages) {
+    }
+}
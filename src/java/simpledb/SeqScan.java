@@ -16,6 +16,8 @@ public class SeqScan implements OpIterator {
     private int tableid;
     private String tableAlias;
     private DbFileIterator iter;
+    private boolean useRing = false;
+    private BufferRing ring;
 
     private Boolean opened = false;
     /**
@@ -83,10 +85,40 @@ public class SeqScan implements OpIterator {
         this(tid, tableId, Database.getCatalog().getTableName(tableId));
     }
 
+    /**
+     * Sets whether this scan reads pages that are not in the buffer pool
+     * through a private {@link BufferRing}, so that it does not evict the
+     * pages other queries use. Meant for tables much larger than the pool;
+     * takes effect the next time the scan is opened.
+     */
+    public void setUseRing(boolean useRing) {
+        this.useRing = useRing;
+    }
+
+    /** Returns true if this scan reads through a private ring of frames. */
+    public boolean usesRing() {
+        return useRing;
+    }
+
+    private DbFileIterator newIterator() {
+        DbFile file = Database.getCatalog().getDatabaseFile(this.tableid);
+        if (ring != null && file instanceof HeapFile) {
+            return ((HeapFile) file).iterator(this.tid, ring);
+        }
+        return file.iterator(this.tid);
+    }
+
     public void open() throws DbException, TransactionAbortedException {
         // some code goes here
+        if (opened) {
+            // opened again without close(): keep the ring already held
+            this.iter.close();
+        }
         opened = true;
-        this.iter = Database.getCatalog().getDatabaseFile(this.tableid).iterator(this.tid);
+        if (useRing && ring == null) {
+            this.ring = Database.getBufferPool().newRing();
+        }
+        this.iter = newIterator();
         iter.open();
     }
 
@@ -130,6 +162,10 @@ public class SeqScan implements OpIterator {
         //if (opened != true) throw new UnsupportedOperationException();
         this.iter.close();
         this.opened = false;
+        if (ring != null) {
+            Database.getBufferPool().releaseRing(ring);
+            ring = null;
+        }
 
     }
 
@@ -137,7 +173,8 @@ public class SeqScan implements OpIterator {
             TransactionAbortedException {
         // some code goes here
         if (opened != true) throw new UnsupportedOperationException();
-        this.iter = Database.getCatalog().getDatabaseFile(this.tableid).iterator(this.tid);
+        this.iter.close();
+        this.iter = newIterator();
         iter.open();
     }
 }
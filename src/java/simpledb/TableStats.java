@@ -66,6 +66,8 @@ public class TableStats {
      */
     static final int NUM_HIST_BINS = 100;
 
+    private final int numPages;
+
     /**
      * Create a new TableStats object, that keeps track of statistics on each
      * column of a table
@@ -85,6 +87,16 @@ public class TableStats {
         // necessarily have to (for example) do everything
         // in a single scan of the table.
         // some code goes here
+        DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+        this.numPages = file instanceof HeapFile ? ((HeapFile) file).numPages() : 0;
+    }
+
+    /**
+     * return the number of pages in this table when the statistics were
+     * computed
+     * */
+    public int numPages() {
+        return numPages;
     }
 
     /**
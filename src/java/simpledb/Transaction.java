@@ -15,6 +15,20 @@ public class Transaction {
         tid = new TransactionId();
     }
 
+    /**
+     * Creates a transaction that retries the work of one that was aborted.
+     * It keeps the timestamp of the aborted transaction, so the deadlock
+     * prevention modes of {@link LockManager} see it grow older with each
+     * retry instead of starting over as the youngest; otherwise it could
+     * be aborted forever. Code that retries an aborted transaction should
+     * use this constructor rather than {@link #Transaction()}.
+     *
+     * @param aborted the transaction being retried
+     */
+    public Transaction(Transaction aborted) {
+        tid = new TransactionId(aborted.getId());
+    }
+
     /** Start the transaction running */
     public void start() {
         started = true;
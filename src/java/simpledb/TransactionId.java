@@ -12,15 +12,45 @@ public class TransactionId implements Serializable {
 
     static AtomicLong counter = new AtomicLong(0);
     final long myid;
+    final long timestamp;
 
     public TransactionId() {
         myid = counter.getAndIncrement();
+        timestamp = myid;
+    }
+
+    /**
+     * Creates the id of a transaction restarted after restarted aborted. It
+     * keeps the timestamp of restarted, so that it ages rather than being
+     * the youngest transaction again.
+     *
+     * @see Transaction#Transaction(Transaction)
+     */
+    public TransactionId(TransactionId restarted) {
+        myid = counter.getAndIncrement();
+        timestamp = restarted.timestamp;
     }
 
     public long getId() {
         return myid;
     }
 
+    /**
+     * Returns when the transaction first began, as an order: a transaction
+     * with a smaller timestamp is older.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /** Whether this transaction is older than other, by timestamp and then id. */
+    public boolean isOlderThan(TransactionId other) {
+        if (timestamp != other.timestamp) {
+            return timestamp < other.timestamp;
+        }
+        return myid < other.myid;
+    }
+
     @Override
 	public boolean equals(Object obj) {
 		if (this == obj)
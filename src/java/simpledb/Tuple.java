@@ -1,6 +1,9 @@
 package simpledb;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
@@ -19,6 +22,16 @@ Tuple implements Serializable {
     private TupleDesc td;
     private RecordId rid;
 
+    /**
+     * Buffer the fields of a tuple read from a page are decoded from on first
+     * access, or null once every field has been decoded (or for tuples that
+     * were not read from a page).
+     */
+    private transient ByteBuffer source;
+    private transient int sourceOffset;
+    /** The page source belongs to, kept reachable while source is read. */
+    private transient Object sourceOwner;
+
     /**
      * Create a new tuple with the specified schema (type).
      *
@@ -33,6 +46,20 @@ Tuple implements Serializable {
         this.rid = null;
     }
 
+    /**
+     * Create a tuple whose fields are decoded lazily from source, starting
+     * at the given offset, the first time they are read. Used by HeapPage so
+     * that scans only pay for the fields they touch. The owner of source
+     * must call {@link #materialize} before changing those bytes; the tuple
+     * keeps it reachable until then.
+     */
+    Tuple(TupleDesc td, ByteBuffer source, int offset, Object owner) {
+        this(td);
+        this.source = source;
+        this.sourceOffset = offset;
+        this.sourceOwner = owner;
+    }
+
     /**
      * @return The TupleDesc representing the schema of this tuple.
      */
@@ -90,9 +117,47 @@ Tuple implements Serializable {
         if (i < 0 || i > this.tuple.length-1) {
             throw new NoSuchElementException();
         }
+        Field f = this.tuple[i];
+        if (f == null && source != null) {
+            f = decodeField(i);
+        }
+        return f;
+    }
+
+    private synchronized Field decodeField(int i) {
+        if (this.tuple[i] == null && source != null) {
+            int offset = sourceOffset;
+            for (int j = 0; j < i; j++) {
+                offset += td.getFieldType(j).getLen();
+            }
+            this.tuple[i] = td.getFieldType(i).parse(source, offset);
+        }
         return this.tuple[i];
     }
 
+    /**
+     * Decode every field that has not been read yet and detach this tuple
+     * from the buffer it was read from.
+     */
+    synchronized void materialize() {
+        if (source == null) return;
+        int offset = sourceOffset;
+        for (int j = 0; j < tuple.length; j++) {
+            Type type = td.getFieldType(j);
+            if (tuple[j] == null) {
+                tuple[j] = type.parse(source, offset);
+            }
+            offset += type.getLen();
+        }
+        source = null;
+        sourceOwner = null;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        materialize();
+        out.defaultWriteObject();
+    }
+
     /**
      * Returns the contents of this Tuple as a string. Note that to pass the
      * system tests, the format needs to be as follows:
@@ -118,6 +183,7 @@ Tuple implements Serializable {
     public Iterator<Field> fields()
     {
         // some code goes here
+        materialize();
         return Arrays.stream(this.tuple).iterator();
     }
 
@@ -126,6 +192,7 @@ Tuple implements Serializable {
      * */
     public void resetTupleDesc(TupleDesc td)
     {
+        materialize();
         this.td = td;
     }
 }
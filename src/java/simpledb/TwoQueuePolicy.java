@@ -0,0 +1,100 @@
+package simpledb;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * 2Q replacement (Johnson and Shasha). Pages read into the pool for the
+ * first time go to a FIFO queue, A1in. Pages evicted from A1in are
+ * remembered, without their contents, in a second FIFO queue, A1out. A page
+ * that is read again while it is remembered in A1out is promoted to an LRU
+ * list, Am. Victims come from A1in while it is over its target size, and
+ * from the least recently used end of Am otherwise. A page that is read
+ * only once, as in a large scan, therefore never displaces the pages in Am.
+ * Every operation is O(1) apart from skipping pages that are not
+ * evictable.
+ */
+public class TwoQueuePolicy implements ReplacementPolicy {
+
+    private int inCapacity;
+    private int outCapacity;
+
+    // LinkedHashSets keep insertion order; re-adding moves a page to the end
+    private final LinkedHashSet<PageId> a1in = new LinkedHashSet<>();
+    private final LinkedHashSet<PageId> a1out = new LinkedHashSet<>();
+    private final LinkedHashSet<PageId> am = new LinkedHashSet<>();
+
+    /**
+     * Creates a 2Q policy for a pool of the given size, with the usual
+     * tuning of A1in at a quarter of the pool and A1out remembering half of
+     * the pool's worth of pages.
+     */
+    public TwoQueuePolicy(int numPages) {
+        resize(numPages);
+    }
+
+    public synchronized void resize(int numPages) {
+        this.inCapacity = Math.max(1, numPages / 4);
+        this.outCapacity = Math.max(1, numPages / 2);
+        trimOut();
+    }
+
+    public synchronized void pageAdded(PageId pid) {
+        if (am.contains(pid) || a1in.contains(pid)) {
+            pageAccessed(pid);
+        } else if (a1out.remove(pid)) {
+            am.add(pid);
+        } else {
+            a1in.add(pid);
+        }
+    }
+
+    public synchronized void pageAccessed(PageId pid) {
+        // accesses to pages in A1in are treated as correlated and ignored
+        if (am.remove(pid)) {
+            am.add(pid);
+        }
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        if (a1in.remove(pid)) {
+            // remember it so that a re-read promotes it to Am
+            a1out.add(pid);
+            trimOut();
+        } else {
+            am.remove(pid);
+        }
+    }
+
+    public synchronized PageId chooseVictim(Evictable evictable) {
+        PageId victim = null;
+        if (a1in.size() > inCapacity || am.isEmpty()) {
+            victim = first(a1in, evictable);
+        }
+        if (victim == null) {
+            victim = first(am, evictable);
+        }
+        if (victim == null) {
+            victim = first(a1in, evictable);
+        }
+        return victim;
+    }
+
+    /** Forgets the oldest pages in A1out until it is within its target size. */
+    private void trimOut() {
+        Iterator<PageId> it = a1out.iterator();
+        while (a1out.size() > outCapacity) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    private static PageId first(LinkedHashSet<PageId> queue, Evictable evictable) {
+        for (PageId pid : queue) {
+            if (evictable.canEvict(pid)) {
+                return pid;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,209 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class AriesRecoveryTest extends SimpleDbTestBase {
+
+    private File file;
+    private HeapFile hf;
+    private HeapPageId pid;
+
+    @Before public void createTable() throws Exception {
+        Database.reset();
+        file = new File("aries.db");
+        HeapFile.delete(file);
+        hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+        pid = new HeapPageId(hf.getId(), 0);
+    }
+
+    @After public void deleteTable() {
+        HeapFile.delete(file);
+    }
+
+    /** Inserts a tuple, commits, and writes the page out. */
+    private void insertAndFlush(int value) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(),
+                Utility.getHeapTuple(new int[] { value, 0 }));
+        t.commit();
+        Database.getBufferPool().flushAllPages();
+        Database.getBufferPool().forceFiles();
+    }
+
+    /** Restarts the database as after a crash and runs recovery. */
+    private void crash() throws Exception {
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+        pid = new HeapPageId(hf.getId(), 0);
+        Database.getLogFile().recover();
+    }
+
+    private int countTuples() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        SeqScan scan = new SeqScan(t.getId(), hf.getId(), "");
+        scan.open();
+        int n = 0;
+        while (scan.hasNext()) {
+            scan.next();
+            n++;
+        }
+        scan.close();
+        t.commit();
+        return n;
+    }
+
+    /**
+     * Unit test for HeapFile pageLSNs: the pageLSN of a page written by the
+     * buffer pool is that of its last log record, and it is still there
+     * after a restart.
+     */
+    @Test public void pageLsnSurvivesRestart() throws Exception {
+        insertAndFlush(1);
+        long lsn = hf.getPageLsn(0);
+        assertTrue(lsn != PageLsnMap.NO_LSN);
+        assertTrue(lsn < Database.getLogFile().getNextLsn());
+
+        crash();
+        assertEquals(lsn, hf.getPageLsn(0));
+        assertEquals(lsn, ((HeapPage) hf.readPage(pid)).getLsn());
+    }
+
+    /**
+     * Unit test for LogFile.recover(): records older than the pageLSN of
+     * their page on disk are not redone, and records newer than it are.
+     */
+    @Test public void redoSkipsRecordsOnDisk() throws Exception {
+        insertAndFlush(1);
+        insertAndFlush(2);
+
+        // a page claiming to hold every record, but without the tuples
+        HeapPage empty = new HeapPage(pid, HeapPage.createEmptyPageData());
+        empty.setLsn(Database.getLogFile().getNextLsn() - 1);
+        hf.writePage(empty);
+        hf.force();
+        crash();
+        assertEquals(0, countTuples());
+
+        // the same page with no pageLSN gets every record redone
+        empty.setLsn(PageLsnMap.NO_LSN);
+        hf.writePage(empty);
+        hf.force();
+        crash();
+        assertEquals(2, countTuples());
+    }
+
+    /**
+     * Unit test for LogFile.recover(): an unfinished transaction is undone
+     * along its prevLSN chain and gets an ABORT record, so a second
+     * recovery leaves it alone.
+     */
+    @Test public void undoLoserOnce() throws Exception {
+        insertAndFlush(1);
+        Transaction t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(),
+                Utility.getHeapTuple(new int[] { 2, 0 }));
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(),
+                Utility.getHeapTuple(new int[] { 3, 0 }));
+        Database.getBufferPool().flushAllPages();
+        Database.getBufferPool().forceFiles();
+
+        crash();
+        assertEquals(1, countTuples());
+        byte[] recovered = hf.readPage(pid).getPageData();
+        crash();
+        assertTrue(Arrays.equals(recovered, hf.readPage(pid).getPageData()));
+        assertEquals(1, countTuples());
+    }
+
+    /**
+     * Unit test for LogFile.recover(): changes to many pages, including a
+     * rolled back transaction, are redone correctly by several workers.
+     */
+    @Test public void parallelRedo() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = 0; i < 2000; i++) {
+            Database.getBufferPool().insertTuple(t.getId(), hf.getId(),
+                    Utility.getHeapTuple(new int[] { i, 0 }));
+        }
+        t.commit();
+
+        Transaction aborted = new Transaction();
+        aborted.start();
+        for (int i = 0; i < 10; i++) {
+            Database.getBufferPool().insertTuple(aborted.getId(), hf.getId(),
+                    Utility.getHeapTuple(new int[] { -i, 0 }));
+        }
+        Database.getBufferPool().flushAllPages();
+        Database.getLogFile().logAbort(aborted.getId());
+        Database.getBufferPool().transactionComplete(aborted.getId(), false);
+        assertTrue(hf.numPages() > 2);
+
+        // without pageLSNs every record is redone
+        new File("aries.db.lsn").delete();
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+        Database.getLogFile().setRedoThreads(4);
+        Database.getLogFile().recover();
+        assertEquals(2000, countTuples());
+    }
+
+    /**
+     * Unit test for LogFile.logAbort(): a transaction is rolled back along
+     * its own prevLSN chain, leaving the changes of a transaction whose
+     * records are interleaved with it alone.
+     */
+    @Test public void abortWalksOwnChain() throws Exception {
+        File file2 = new File("aries2.db");
+        try {
+            HeapFile hf2 = Utility.createEmptyHeapFile(file2.getAbsolutePath(), 2);
+            Transaction aborted = new Transaction();
+            Transaction running = new Transaction();
+            aborted.start();
+            running.start();
+            for (int i = 0; i < 3; i++) {
+                Database.getBufferPool().insertTuple(aborted.getId(), hf.getId(),
+                        Utility.getHeapTuple(new int[] { i, 0 }));
+                Database.getBufferPool().insertTuple(running.getId(), hf2.getId(),
+                        Utility.getHeapTuple(new int[] { i, 0 }));
+                // uncommitted pages reach the log, and the disk
+                Database.getBufferPool().flushAllPages();
+            }
+            aborted.transactionComplete(true);
+            assertEquals(0, countTuples());
+
+            HeapPage page2 = (HeapPage) hf2.readPage(new HeapPageId(hf2.getId(), 0));
+            int n = 0;
+            for (Iterator<Tuple> it = page2.iterator(); it.hasNext(); it.next()) {
+                n++;
+            }
+            assertEquals(3, n);
+            running.commit();
+        } finally {
+            HeapFile.delete(file2);
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(AriesRecoveryTest.class);
+    }
+}
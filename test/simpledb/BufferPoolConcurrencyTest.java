@@ -0,0 +1,127 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class BufferPoolConcurrencyTest extends SimpleDbTestBase {
+
+    /** A HeapFile whose page reads wait until the test lets them go. */
+    private static class SlowHeapFile extends HeapFile {
+        final AtomicInteger reads = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(2);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        SlowHeapFile(File f) {
+            super(f, Utility.getTupleDesc(2));
+        }
+
+        @Override
+        public Page readPage(PageId pid) {
+            reads.incrementAndGet();
+            started.countDown();
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            return super.readPage(pid);
+        }
+    }
+
+    private File file;
+    private SlowHeapFile hf;
+    private BufferPool bp;
+
+    @Before public void createFile() throws Exception {
+        file = File.createTempFile("slow", ".dat");
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(2 * BufferPool.getPageSize());
+        }
+        hf = new SlowHeapFile(file);
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    }
+
+    @After public void deleteFile() {
+        HeapFile.delete(file);
+    }
+
+    /** Fetches a page in a new thread and transaction. */
+    private Thread fetch(final int pgNo, final Page[] result, final int i) {
+        Thread t = new Thread() {
+            public void run() {
+                try {
+                    result[i] = bp.getPage(new TransactionId(),
+                            new HeapPageId(hf.getId(), pgNo), Permissions.READ_ONLY);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        t.start();
+        return t;
+    }
+
+    /**
+     * Unit test for BufferPool.getPage(): misses on different pages read
+     * them in parallel rather than one at a time.
+     */
+    @Test public void missesLoadInParallel() throws Exception {
+        Page[] pages = new Page[2];
+        Thread t0 = fetch(0, pages, 0);
+        Thread t1 = fetch(1, pages, 1);
+        // both reads must be in progress at the same time
+        assertTrue(hf.started.await(10, TimeUnit.SECONDS));
+        hf.release.countDown();
+        t0.join();
+        t1.join();
+        assertEquals(2, hf.reads.get());
+        assertEquals(2, bp.getMissCount());
+    }
+
+    /**
+     * Unit test for BufferPool.getPage(): concurrent misses on the same page
+     * share a single read.
+     */
+    @Test public void singleFlight() throws Exception {
+        Page[] pages = new Page[8];
+        Thread[] threads = new Thread[pages.length];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = fetch(0, pages, i);
+        }
+        // let the other threads pile up behind the first read
+        Thread.sleep(200);
+        hf.release.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(1, hf.reads.get());
+        assertEquals(1, bp.getMissCount());
+        for (Page p : pages) {
+            assertSame(pages[0], p);
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolConcurrencyTest.class);
+    }
+}
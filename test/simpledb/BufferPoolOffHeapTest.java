@@ -0,0 +1,160 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class BufferPoolOffHeapTest extends SimpleDbTestBase {
+
+    private ArrayList<ArrayList<Integer>> tuples;
+    private HeapFile hf;
+    private BufferPool bp;
+    private TransactionId tid;
+
+    /** Installs bp as the database's buffer pool, like Database.resetBufferPool. */
+    private static void setBufferPool(BufferPool bp) throws Exception {
+        Field instance = Database.class.getDeclaredField("_instance");
+        instance.setAccessible(true);
+        Field f = Database.class.getDeclaredField("_bufferpool");
+        f.setAccessible(true);
+        f.set(((AtomicReference<?>) instance.get(null)).get(), bp);
+    }
+
+    @Before public void createPool() throws Exception {
+        tuples = new ArrayList<>();
+        hf = SystemTestUtil.createRandomHeapFile(2, 504 * 10, null, tuples);
+        bp = new BufferPool(2, new ClockPolicy(), true);
+        setBufferPool(bp);
+        tid = new TransactionId();
+    }
+
+    /**
+     * Unit test for FrameArena: frames are handed out until the arena is
+     * empty and can be reused once released.
+     */
+    @Test public void arenaFrames() {
+        FrameArena arena = new FrameArena(3, 4096);
+        int a = arena.allocate();
+        int b = arena.allocate();
+        int c = arena.allocate();
+        assertEquals(-1, arena.allocate());
+        assertEquals(4096, arena.frame(b).capacity());
+        arena.frame(a).put(0, (byte) 1);
+        assertEquals(0, arena.frame(b).get(0));
+        arena.release(b);
+        assertEquals(b, arena.allocate());
+        assertEquals(0, arena.numFree());
+        arena.release(a);
+        arena.release(c);
+        assertEquals(2, arena.numFree());
+        try {
+            arena.release(a);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // a is free already, though b is still in use
+        }
+        assertEquals(2, arena.numFree());
+    }
+
+    /**
+     * Unit test for FrameArena: a frame released with the page that used it
+     * hands that page back once, when the frame is taken again.
+     */
+    @Test public void arenaRemembersOccupant() {
+        FrameArena arena = new FrameArena(1, 4096);
+        Object page = new Object();
+        int a = arena.allocate();
+        arena.release(a, page);
+        assertEquals(a, arena.allocate());
+        assertSame(page, arena.takeOccupant(a));
+        assertNull(arena.takeOccupant(a));
+    }
+
+    /**
+     * Unit test for the off-heap pool: a page still referenced after it was
+     * evicted keeps its image once its frame holds another page.
+     */
+    @Test public void evictedPageKeepsImage() throws Exception {
+        HeapPage page0 = (HeapPage) bp.getPage(tid, new HeapPageId(hf.getId(), 0), Permissions.READ_ONLY);
+        byte[] image = page0.getPageData();
+        for (int pgNo = 1; pgNo < 5; pgNo++) {
+            bp.getPage(tid, new HeapPageId(hf.getId(), pgNo), Permissions.READ_ONLY);
+        }
+        assertTrue(bp.getEvictionCount() >= 3);
+        assertArrayEquals(image, page0.getPageData());
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * Unit test for BufferPool.pinPage(): a pinned page is never evicted,
+     * even if that leaves nothing to evict.
+     */
+    @Test public void pinnedPagesAreNotEvicted() throws Exception {
+        HeapPageId p0 = new HeapPageId(hf.getId(), 0);
+        HeapPageId p1 = new HeapPageId(hf.getId(), 1);
+        HeapPageId p2 = new HeapPageId(hf.getId(), 2);
+        Page page0 = bp.pinPage(tid, p0, Permissions.READ_ONLY);
+        bp.pinPage(tid, p1, Permissions.READ_ONLY);
+        assertEquals(1, bp.getPinCount(p0));
+        try {
+            bp.getPage(tid, p2, Permissions.READ_ONLY);
+            fail("expected DbException");
+        } catch (DbException e) {
+            // every page is pinned
+        }
+
+        bp.unpinPage(tid, p1);
+        bp.getPage(tid, p2, Permissions.READ_ONLY);
+        assertEquals(page0, bp.getPage(tid, p0, Permissions.READ_ONLY));
+        bp.transactionComplete(tid);
+        assertEquals(0, bp.getPinCount(p0));
+    }
+
+    /**
+     * Unit test for the off-heap pool: scanning a table ten times the size
+     * of the pool reuses its two frames, and tuples read from pages that
+     * were since evicted keep their values.
+     */
+    @Test public void scanReusesFrames() throws Exception {
+        assertTrue(bp.isOffHeap());
+        ArrayList<Tuple> read = new ArrayList<>();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            read.add(it.next());
+        }
+        it.close();
+        assertTrue(bp.getEvictionCount() >= 8);
+
+        assertEquals(tuples.size(), read.size());
+        for (int i = 0; i < read.size(); i++) {
+            Tuple t = read.get(i);
+            for (int j = 0; j < 2; j++) {
+                assertEquals(tuples.get(i).get(j).intValue(), ((IntField) t.getField(j)).getValue());
+            }
+        }
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolOffHeapTest.class);
+    }
+}
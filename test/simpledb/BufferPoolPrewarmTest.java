@@ -0,0 +1,123 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class BufferPoolPrewarmTest extends SimpleDbTestBase {
+
+    private HeapFile hf;
+    private File hotPages;
+    private TransactionId tid;
+
+    @Before public void createTable() throws Exception {
+        hf = SystemTestUtil.createRandomHeapFile(2, 504 * 20, null, null);
+        hotPages = File.createTempFile("hotpages", ".dat");
+        tid = new TransactionId();
+    }
+
+    @After public void deleteFile() {
+        hotPages.delete();
+    }
+
+    private Page read(BufferPool bp, int pgNo) throws Exception {
+        return bp.getPage(tid, new HeapPageId(hf.getId(), pgNo), Permissions.READ_ONLY);
+    }
+
+    /** Reads the specified pages into a new pool and saves them as hot. */
+    private void saveHotPages(int... pgNos) throws Exception {
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        for (int pgNo : pgNos) {
+            read(bp, pgNo);
+        }
+        bp.transactionComplete(tid);
+        bp.setHotPageFile(hotPages);
+        bp.saveHotPages();
+    }
+
+    /**
+     * Unit test for BufferPool.prewarm(): pages saved by saveHotPages are
+     * in the pool of the next database, so reading them does not miss.
+     */
+    @Test public void prewarmLoadsSavedPages() throws Exception {
+        saveHotPages(12, 3, 4, 5, 17);
+
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        bp.setHotPageFile(hotPages);
+        bp.prewarm().join();
+        for (int pgNo : new int[] { 3, 4, 5, 12, 17 }) {
+            read(bp, pgNo);
+        }
+        assertEquals(0, bp.getMissCount());
+        read(bp, 6);
+        assertEquals(1, bp.getMissCount());
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * Unit test for BufferPool.prewarm(): a loaded page gets the pageLSN
+     * it was last written with, as a page read on a miss does.
+     */
+    @Test public void prewarmSetsPageLsn() throws Exception {
+        HeapPage written = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), 3));
+        written.setLsn(42);
+        hf.writePage(written);
+        saveHotPages(3);
+
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        bp.setHotPageFile(hotPages);
+        assertEquals(1, bp.loadHotPages());
+        HeapPage page = (HeapPage) read(bp, 3);
+        assertEquals(0, bp.getMissCount());
+        assertEquals(42, page.getLsn());
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * Unit test for BufferPool.prewarm(): a list longer than the pool fills
+     * it without evicting anything.
+     */
+    @Test public void prewarmStopsWhenFull() throws Exception {
+        saveHotPages(0, 1, 2, 3, 4, 5, 6, 7, 8, 9);
+
+        BufferPool bp = Database.resetBufferPool(4);
+        bp.setHotPageFile(hotPages);
+        assertEquals(4, bp.loadHotPages());
+        assertEquals(0, bp.getEvictionCount());
+        for (int pgNo = 0; pgNo < 4; pgNo++) {
+            read(bp, pgNo);
+        }
+        assertEquals(0, bp.getMissCount());
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * Unit test for BufferPool.prewarm(): a file that is not a hot page list
+     * is ignored.
+     */
+    @Test public void corruptListIsIgnored() throws Exception {
+        try (FileOutputStream out = new FileOutputStream(hotPages)) {
+            out.write(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 });
+        }
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        bp.setHotPageFile(hotPages);
+        assertEquals(0, bp.loadHotPages());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolPrewarmTest.class);
+    }
+}
@@ -0,0 +1,118 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class BufferPoolResizeTest extends SimpleDbTestBase {
+
+    private HeapFile hf;
+    private BufferPool bp;
+    private TransactionId tid;
+
+    @Before public void createTable() throws Exception {
+        hf = SystemTestUtil.createRandomHeapFile(2, 504 * 20, null, null);
+        bp = Database.resetBufferPool(10);
+        tid = new TransactionId();
+    }
+
+    private Page read(int pgNo) throws Exception {
+        return bp.getPage(tid, new HeapPageId(hf.getId(), pgNo), Permissions.READ_ONLY);
+    }
+
+    /**
+     * Unit test for BufferPool.resize(): growing the pool makes room for
+     * more pages without evicting any.
+     */
+    @Test public void grow() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            read(i);
+        }
+        bp.resize(20);
+        assertEquals(20, bp.getNumPages());
+        for (int i = 10; i < 20; i++) {
+            read(i);
+        }
+        assertEquals(0, bp.getEvictionCount());
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * Unit test for BufferPool.resize(): shrinking the pool evicts clean
+     * pages right away and keeps locks.
+     */
+    @Test public void shrinkEvictsCleanPages() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            read(i);
+        }
+        bp.resize(4);
+        assertEquals(6, bp.getEvictionCount());
+        assertTrue(bp.holdsLock(tid, new HeapPageId(hf.getId(), 0)));
+
+        // the pool is at its new size, so a miss evicts just one page
+        read(10);
+        assertEquals(7, bp.getEvictionCount());
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * Unit test for BufferPool.resize(): dirty pages are not evicted by the
+     * resize itself, but by later misses, two at a time.
+     */
+    @Test public void shrinkEvictsDirtyPagesGradually() throws Exception {
+        // the dirty pages belong to a running transaction
+        bp.setSteal(true);
+        for (int i = 0; i < 10; i++) {
+            Page p = bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_WRITE);
+            if (i < 6) {
+                p.markDirty(true, tid);
+            }
+        }
+        bp.resize(2);
+        assertEquals(4, bp.getEvictionCount());
+
+        read(10);
+        assertEquals(6, bp.getEvictionCount());
+        read(11);
+        assertEquals(8, bp.getEvictionCount());
+        bp.transactionComplete(tid, false);
+    }
+
+    /**
+     * Unit test for BufferPool.resize() on an off-heap pool: the arena
+     * grows with the pool.
+     */
+    @Test public void growOffHeap() throws Exception {
+        FrameArena arena = new FrameArena(2, BufferPool.getPageSize());
+        arena.grow(5);
+        assertEquals(5, arena.capacity());
+        for (int i = 0; i < 5; i++) {
+            int frame = arena.allocate();
+            assertTrue(frame >= 0);
+            arena.frame(frame).put(0, (byte) i);
+        }
+        assertEquals(-1, arena.allocate());
+
+        BufferPool offHeap = new BufferPool(2, new ClockPolicy(), true);
+        offHeap.resize(6);
+        for (int i = 0; i < 6; i++) {
+            offHeap.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+        }
+        assertEquals(0, offHeap.getEvictionCount());
+        offHeap.transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolResizeTest.class);
+    }
+}
@@ -0,0 +1,132 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class BufferPoolStealTest extends SimpleDbTestBase {
+
+    /** Tuples of two ints on a page. */
+    private static final int TUPLES_PER_PAGE = 504;
+
+    private File file;
+    private HeapFile hf;
+    private BufferPool bp;
+
+    @Before public void createTable() throws Exception {
+        Database.reset();
+        file = new File("steal.db");
+        deleteTable();
+        hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+        bp = Database.resetBufferPool(3);
+    }
+
+    @After public void deleteTable() {
+        HeapFile.delete(file);
+    }
+
+    /** Inserts enough tuples to dirty more pages than the pool holds. */
+    private void insertBatch(Transaction t) throws Exception {
+        for (int i = 0; i < TUPLES_PER_PAGE * 5; i++) {
+            Database.getBufferPool().insertTuple(t.getId(), hf.getId(),
+                    Utility.getHeapTuple(new int[] { i, 0 }));
+        }
+    }
+
+    private int countTuples() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        SeqScan scan = new SeqScan(t.getId(), hf.getId(), "");
+        scan.open();
+        int n = 0;
+        while (scan.hasNext()) {
+            scan.next();
+            n++;
+        }
+        scan.close();
+        t.commit();
+        return n;
+    }
+
+    /**
+     * Unit test for BufferPool with NO STEAL: a transaction whose changes
+     * do not fit in the pool fails rather than writing them.
+     */
+    @Test public void noStealFails() throws Exception {
+        bp.setSteal(false);
+        Transaction t = new Transaction();
+        t.start();
+        try {
+            insertBatch(t);
+            fail("expected DbException");
+        } catch (DbException e) {
+            // expected
+        }
+        assertEquals(0, bp.getStealCount());
+        t.transactionComplete(true);
+    }
+
+    /**
+     * Unit test for BufferPool with STEAL: a transaction larger than the
+     * pool commits, and every page written holds only logged changes.
+     */
+    @Test public void stealCommits() throws Exception {
+        bp.setSteal(true);
+        Transaction t = new Transaction();
+        t.start();
+        insertBatch(t);
+        assertTrue(bp.getStealCount() > 0);
+        for (int i = 0; i < hf.numPages(); i++) {
+            assertTrue(hf.getPageLsn(i) < Database.getLogFile().getFlushedLsn());
+        }
+        t.commit();
+        assertEquals(TUPLES_PER_PAGE * 5, countTuples());
+    }
+
+    /**
+     * Unit test for BufferPool with STEAL: aborting a transaction rolls back
+     * the pages written before its end.
+     */
+    @Test public void abortAfterSteal() throws Exception {
+        bp.setSteal(true);
+        Transaction t = new Transaction();
+        t.start();
+        insertBatch(t);
+        t.transactionComplete(true);
+        assertEquals(0, countTuples());
+    }
+
+    /**
+     * Unit test for LogFile.recover() with STEAL: recovery undoes the pages
+     * a transaction that never ended wrote.
+     */
+    @Test public void recoveryUndoesSteal() throws Exception {
+        bp.setSteal(true);
+        Transaction t = new Transaction();
+        t.start();
+        insertBatch(t);
+        bp.forceFiles();
+
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+        Database.getLogFile().recover();
+        assertEquals(0, countTuples());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolStealTest.class);
+    }
+}
@@ -133,6 +133,22 @@ public class BufferPoolWriteTest extends TestUtil.CreateHeapFile {
     	assertEquals(10, count);
     }
 
+    /**
+     * Unit test for BufferPool.transactionComplete(): commit logs only the
+     * pages the transaction dirtied, not the ones it read.
+     */
+    @Test public void commitLogsOnlyDirtyPages() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504*10, null, null);
+        for (int i = 0; i < 10; i++) {
+            Database.getBufferPool().getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+        }
+        Database.getBufferPool().insertTuple(tid, empty.getId(), Utility.getHeapTuple(1, 2));
+
+        int records = Database.getLogFile().getTotalRecords();
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(records + 1, Database.getLogFile().getTotalRecords());
+    }
+
     /**
      * JUnit suite target
      */
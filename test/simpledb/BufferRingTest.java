@@ -0,0 +1,126 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class BufferRingTest extends SimpleDbTestBase {
+
+    private HeapFile hot;
+    private HeapFile cold;
+    private BufferPool bp;
+    private TransactionId tid;
+
+    @Before public void createTables() throws Exception {
+        hot = SystemTestUtil.createRandomHeapFile(2, 504 * 4, null, null);
+        cold = SystemTestUtil.createRandomHeapFile(2, 504 * 40, null, null);
+        bp = Database.resetBufferPool(16);
+        tid = new TransactionId();
+    }
+
+    private void readHotPages() throws Exception {
+        for (int i = 0; i < hot.numPages(); i++) {
+            bp.getPage(tid, new HeapPageId(hot.getId(), i), Permissions.READ_ONLY);
+        }
+    }
+
+    private int scan(SeqScan ss) throws Exception {
+        int count = 0;
+        ss.open();
+        while (ss.hasNext()) {
+            ss.next();
+            count++;
+        }
+        ss.close();
+        return count;
+    }
+
+    /**
+     * Unit test for BufferRing.add(): frames are reused oldest first.
+     */
+    @Test public void reusesOldestFrame() {
+        BufferRing ring = new BufferRing(2);
+        assertNull(ring.add(new HeapPageId(1, 0)));
+        assertNull(ring.add(new HeapPageId(1, 1)));
+        assertEquals(new HeapPageId(1, 0), ring.add(new HeapPageId(1, 2)));
+        assertEquals(2, ring.clear().size());
+        assertNull(ring.add(new HeapPageId(1, 3)));
+    }
+
+    /**
+     * Unit test for SeqScan with a ring: scanning a table larger than the
+     * pool leaves the pages already in the pool there.
+     */
+    @Test public void scanKeepsHotPages() throws Exception {
+        readHotPages();
+        assertEquals(4, bp.getMissCount());
+
+        SeqScan ss = new SeqScan(tid, cold.getId(), "");
+        ss.setUseRing(true);
+        assertEquals(504 * 40, scan(ss));
+        assertEquals(0, bp.getEvictionCount());
+
+        long hits = bp.getHitCount();
+        readHotPages();
+        assertEquals(hits + 4, bp.getHitCount());
+        assertEquals(4 + 40, bp.getMissCount());
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * Unit test for SeqScan.open(): opening a scan again without closing
+     * it keeps using its ring, so close() gives all of its pages back.
+     */
+    @Test public void reopenKeepsRing() throws Exception {
+        SeqScan ss = new SeqScan(tid, cold.getId(), "");
+        ss.setUseRing(true);
+        ss.open();
+        int count = 0;
+        while (ss.hasNext()) {
+            ss.next();
+            count++;
+        }
+        assertEquals(504 * 40, count);
+        ss.open();
+        ss.next();
+        ss.close();
+
+        long misses = bp.getMissCount();
+        bp.getPage(tid, new HeapPageId(cold.getId(), cold.numPages() - 1), Permissions.READ_ONLY);
+        assertEquals(misses + 1, bp.getMissCount());
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * Unit test for BufferPool.getPage(): a ring page that is asked for
+     * without the ring becomes a page of the shared pool.
+     */
+    @Test public void sharedAccessAdoptsRingPage() throws Exception {
+        BufferRing ring = bp.newRing();
+        HeapPageId pid = new HeapPageId(cold.getId(), 0);
+        Page page = bp.getPage(tid, pid, Permissions.READ_ONLY, ring);
+        bp.getPage(tid, pid, Permissions.READ_ONLY);
+        for (int i = 1; i <= ring.size(); i++) {
+            bp.getPage(tid, new HeapPageId(cold.getId(), i), Permissions.READ_ONLY, ring);
+        }
+        bp.releaseRing(ring);
+        long misses = bp.getMissCount();
+        assertEquals(page, bp.getPage(tid, pid, Permissions.READ_ONLY));
+        assertEquals(misses, bp.getMissCount());
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferRingTest.class);
+    }
+}
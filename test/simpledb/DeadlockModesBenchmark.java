@@ -0,0 +1,54 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+/**
+ * Compares how the deadlock modes of LockManager do on the workload of
+ * DeadlockModesTest, short transactions contending for a few pages, and
+ * prints how many commit per second and how many are aborted per commit.
+ * Run with "ant benchmark"; not part of the unit tests, since the numbers
+ * depend on the machine and its load.
+ */
+public class DeadlockModesBenchmark extends SimpleDbTestBase {
+
+    private static final int ROUNDS = 500;
+
+    /**
+     * Contention benchmark for LockManager: detection, wait-die and
+     * wound-wait on the same workload. Only checks what does not depend on
+     * timing: that the prevention modes never abort the oldest transaction
+     * of a round.
+     */
+    @Test public void compareModes() throws Exception {
+        String[] modes = { "detect", "wait-die", "wound-wait" };
+        // warm up
+        DeadlockModesTest.run(new LockManager(LockManager.STRIPES, "detect"), ROUNDS / 10);
+
+        for (String mode : modes) {
+            long start = System.nanoTime();
+            DeadlockModesTest.Result result =
+                DeadlockModesTest.run(new LockManager(LockManager.STRIPES, mode), ROUNDS);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            int commits = result.commits.get();
+            System.out.println(String.format(
+                    "LockManager %s: %.0f commits per second, %.2f aborts per commit",
+                    mode, commits / seconds, result.totalAborts() / (double) commits));
+            if (!mode.equals("detect")) {
+                assertEquals(0, result.aborts.get(0));
+            }
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(DeadlockModesBenchmark.class);
+    }
+}
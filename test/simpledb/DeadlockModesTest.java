@@ -0,0 +1,172 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+/**
+ * Runs the deadlock modes of LockManager on rounds of short transactions
+ * contending for a few pages, and checks that every transaction commits
+ * and that only the transactions the mode allows are aborted.
+ */
+public class DeadlockModesTest extends SimpleDbTestBase {
+
+    private static final int THREADS = 8;
+    private static final int ROUNDS = 20;
+    private static final int PAGES = 8;
+    private static final int PAGES_PER_TRANSACTION = 4;
+    private static final long WAIT_MILLIS = 10000;
+
+    /** Commits, and aborts by age in the round (0 is the oldest), of a run. */
+    static class Result {
+        final AtomicInteger commits = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+        final AtomicIntegerArray aborts = new AtomicIntegerArray(THREADS);
+
+        /** Returns the aborts of transactions of every age. */
+        int totalAborts() {
+            int total = 0;
+            for (int i = 0; i < aborts.length(); i++) {
+                total += aborts.get(i);
+            }
+            return total;
+        }
+    }
+
+    private static void releaseAll(LockManager locks, TransactionId tid) {
+        for (LockManager.Lock lock : locks.getTransactionLocks(tid)) {
+            locks.releaseLock(tid, lock.getPID());
+        }
+    }
+
+    /**
+     * Runs rounds of one transaction per thread, begun oldest first. Each
+     * locks a few random pages, half of them exclusively, and then
+     * releases them; an aborted transaction is restarted with its
+     * timestamp until it commits. Also used by DeadlockModesBenchmark.
+     */
+    static Result run(final LockManager locks, int rounds) throws Exception {
+        final Result result = new Result();
+        for (int round = 0; round < rounds; round++) {
+            Thread[] workers = new Thread[THREADS];
+            for (int i = 0; i < THREADS; i++) {
+                final int age = i;
+                final TransactionId first = new TransactionId();
+                final Random rand = new Random(round * THREADS + i);
+                workers[i] = new Thread() {
+                    public void run() {
+                        try {
+                            TransactionId tid = first;
+                            while (true) {
+                                boolean committed = true;
+                                for (int p = 0; p < PAGES_PER_TRANSACTION && committed; p++) {
+                                    PageId pid = new HeapPageId(1, rand.nextInt(PAGES));
+                                    Permissions perm = rand.nextBoolean()
+                                        ? Permissions.READ_WRITE : Permissions.READ_ONLY;
+                                    committed = locks.acquireLock(tid, pid, perm);
+                                    Thread.yield();
+                                }
+                                releaseAll(locks, tid);
+                                if (committed) {
+                                    result.commits.incrementAndGet();
+                                    return;
+                                }
+                                result.aborts.incrementAndGet(age);
+                                tid = new TransactionId(tid);
+                                if (tid.getTimestamp() != first.getTimestamp()) {
+                                    result.failures.incrementAndGet();
+                                }
+                            }
+                        } catch (Exception e) {
+                            result.failures.incrementAndGet();
+                        }
+                    }
+                };
+                workers[i].setDaemon(true);
+            }
+            for (Thread worker : workers) {
+                worker.start();
+            }
+            for (Thread worker : workers) {
+                worker.join(WAIT_MILLIS);
+                assertFalse("a transaction is stuck waiting", worker.isAlive());
+            }
+        }
+        assertEquals(0, result.failures.get());
+        assertEquals(THREADS * rounds, result.commits.get());
+        return result;
+    }
+
+    /**
+     * Unit test for LockManager with "detect": every transaction commits
+     * in the end, without any of them getting stuck.
+     */
+    @Test public void detectFinishes() throws Exception {
+        run(new LockManager(LockManager.STRIPES, "detect"), ROUNDS);
+    }
+
+    /**
+     * Unit test for LockManager with wait-die: only a requester younger
+     * than a transaction it waits for dies, so the oldest transaction of
+     * a round never aborts.
+     */
+    @Test public void waitDieAbortsYounger() throws Exception {
+        Result result = run(new LockManager(LockManager.STRIPES, "wait-die"), ROUNDS);
+        assertEquals(0, result.aborts.get(0));
+    }
+
+    /**
+     * Unit test for LockManager with wound-wait: only a transaction an
+     * older one waits for is wounded, so the oldest transaction of a round
+     * never aborts.
+     */
+    @Test public void woundWaitAbortsYounger() throws Exception {
+        Result result = run(new LockManager(LockManager.STRIPES, "wound-wait"), ROUNDS);
+        assertEquals(0, result.aborts.get(0));
+    }
+
+    /**
+     * Unit test for TransactionId and Transaction: a restarted transaction
+     * keeps the timestamp of the one it replaces, so it stays older than
+     * the transactions begun after that one.
+     */
+    @Test public void restartKeepsTimestamp() {
+        TransactionId first = new TransactionId();
+        TransactionId later = new TransactionId();
+        TransactionId restarted = new TransactionId(first);
+        assertFalse(restarted.equals(first));
+        assertEquals(first.getTimestamp(), restarted.getTimestamp());
+        assertTrue(restarted.isOlderThan(later));
+        assertFalse(later.isOlderThan(restarted));
+
+        Transaction aborted = new Transaction();
+        Transaction retry = new Transaction(aborted);
+        assertEquals(aborted.getId().getTimestamp(), retry.getId().getTimestamp());
+        assertFalse(retry.getId().equals(aborted.getId()));
+    }
+
+    /**
+     * Unit test for LockManager: unknown deadlock modes are rejected.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownMode() {
+        new LockManager(LockManager.STRIPES, "timeout");
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(DeadlockModesTest.class);
+    }
+}
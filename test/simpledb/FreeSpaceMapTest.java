@@ -0,0 +1,139 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class FreeSpaceMapTest extends SimpleDbTestBase {
+
+    private File file;
+
+    @Before public void createFile() throws Exception {
+        file = File.createTempFile("fsm", ".fsm");
+        file.delete();
+    }
+
+    @After public void deleteFile() {
+        file.delete();
+    }
+
+    /**
+     * Unit test for FreeSpaceMap.nextPageWithRoom() and update()
+     */
+    @Test public void nextPageWithRoom() {
+        FreeSpaceMap fsm = new FreeSpaceMap(file, 0);
+        assertEquals(0, fsm.nextPageWithRoom(0, 3));
+        assertEquals(-1, fsm.nextPageWithRoom(0, 0));
+
+        fsm.update(0, false);
+        fsm.update(1, false);
+        assertEquals(2, fsm.nextPageWithRoom(0, 3));
+        assertEquals(-1, fsm.nextPageWithRoom(0, 2));
+
+        fsm.update(1, true);
+        assertEquals(1, fsm.nextPageWithRoom(0, 3));
+        assertEquals(2, fsm.nextPageWithRoom(2, 3));
+    }
+
+    /**
+     * Unit test for FreeSpaceMap.save(): a saved map is reloaded only if it
+     * matches the length of the heap file.
+     */
+    @Test public void saveAndLoad() throws Exception {
+        FreeSpaceMap fsm = new FreeSpaceMap(file, 0);
+        fsm.update(0, false);
+        fsm.update(2, false);
+        fsm.save(3 * 4096);
+
+        FreeSpaceMap loaded = new FreeSpaceMap(file, 3 * 4096);
+        assertEquals(1, loaded.nextPageWithRoom(0, 3));
+        assertEquals(-1, loaded.nextPageWithRoom(2, 3));
+
+        FreeSpaceMap stale = new FreeSpaceMap(file, 4 * 4096);
+        assertEquals(0, stale.nextPageWithRoom(0, 4));
+    }
+
+    /**
+     * Unit test for HeapFile.insertTuple(): an insert after a delete reuses
+     * the freed slot instead of appending a page.
+     */
+    @Test public void insertReusesFreedPage() throws Exception {
+        HeapFile hf = Utility.createEmptyHeapFile(file.getPath() + ".dat", 2);
+        TransactionId tid = new TransactionId();
+        Tuple first = null;
+        for (int i = 0; i < 1008; i++) {
+            Tuple t = Utility.getHeapTuple(i, 2);
+            hf.insertTuple(tid, t);
+            if (first == null) first = t;
+        }
+        assertEquals(2, hf.numPages());
+
+        hf.deleteTuple(tid, first);
+        Tuple t = Utility.getHeapTuple(7, 2);
+        hf.insertTuple(tid, t);
+        assertEquals(2, hf.numPages());
+        assertEquals(first.getRecordId(), t.getRecordId());
+        Database.getBufferPool().transactionComplete(tid);
+        HeapFile.delete(new File(file.getPath() + ".dat"));
+    }
+
+    /**
+     * Unit test for HeapFile.deleteTuple(): the freed slot is only offered
+     * to other transactions once the deleting transaction commits.
+     */
+    @Test public void deleteFreesSlotAtCommit() throws Exception {
+        HeapFile hf = Utility.createEmptyHeapFile(file.getPath() + ".dat", 2);
+        TransactionId tid = new TransactionId();
+        Tuple first = null;
+        for (int i = 0; i < 504; i++) {
+            Tuple t = Utility.getHeapTuple(i, 2);
+            hf.insertTuple(tid, t);
+            if (first == null) first = t;
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(-1, hf.getFreeSpaceMap().nextPageWithRoom(0, 1));
+
+        TransactionId deleter = new TransactionId();
+        hf.deleteTuple(deleter, first);
+        assertEquals(-1, hf.getFreeSpaceMap().nextPageWithRoom(0, 1));
+        Database.getBufferPool().transactionComplete(deleter);
+        assertEquals(0, hf.getFreeSpaceMap().nextPageWithRoom(0, 1));
+        HeapFile.delete(new File(file.getPath() + ".dat"));
+    }
+
+    /**
+     * Unit test for HeapFile.insertTuple(): a page an aborted transaction
+     * filled is offered to inserts again.
+     */
+    @Test public void abortedInsertFreesPage() throws Exception {
+        HeapFile hf = Utility.createEmptyHeapFile(file.getPath() + ".dat", 2);
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 504; i++) {
+            hf.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        }
+        assertEquals(-1, hf.getFreeSpaceMap().nextPageWithRoom(0, 1));
+        Database.getBufferPool().transactionComplete(tid, false);
+        assertEquals(0, hf.getFreeSpaceMap().nextPageWithRoom(0, 1));
+
+        TransactionId inserter = new TransactionId();
+        hf.insertTuple(inserter, Utility.getHeapTuple(7, 2));
+        assertEquals(1, hf.numPages());
+        Database.getBufferPool().transactionComplete(inserter);
+        HeapFile.delete(new File(file.getPath() + ".dat"));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(FreeSpaceMapTest.class);
+    }
+}
@@ -0,0 +1,138 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Iterator;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class FuzzyCheckpointTest extends SimpleDbTestBase {
+
+    private File file1;
+    private File file2;
+    private HeapFile hf1;
+    private HeapFile hf2;
+
+    @Before public void createTables() throws Exception {
+        Database.reset();
+        file1 = new File("fuzzy1.db");
+        file2 = new File("fuzzy2.db");
+        deleteTables();
+        hf1 = Utility.createEmptyHeapFile(file1.getAbsolutePath(), 2);
+        hf2 = Utility.createEmptyHeapFile(file2.getAbsolutePath(), 2);
+        // the tests write pages themselves
+        Database.getBufferPool().setWriterInterval(0);
+    }
+
+    @After public void deleteTables() {
+        for (File f : new File[] { file1, file2 }) {
+            HeapFile.delete(f);
+        }
+    }
+
+    private void insert(TransactionId tid, HeapFile hf, int value) throws Exception {
+        Database.getBufferPool().insertTuple(tid, hf.getId(),
+                Utility.getHeapTuple(new int[] { value, 0 }));
+    }
+
+    private int tuplesOnDisk(HeapFile hf) {
+        HeapPage page = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), 0));
+        int n = 0;
+        for (Iterator<Tuple> it = page.iterator(); it.hasNext(); it.next()) {
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Unit test for LogFile.logCheckpoint(): a checkpoint writes no pages,
+     * and the dirty page table it records lets recovery redo changes
+     * committed before it.
+     */
+    @Test public void checkpointWritesNoPages() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        insert(t.getId(), hf1, 1);
+        t.commit();
+
+        Database.getLogFile().logCheckpoint();
+        HeapPageId pid = new HeapPageId(hf1.getId(), 0);
+        assertEquals(0, tuplesOnDisk(hf1));
+        assertTrue(Database.getBufferPool().getDirtyPageTable().containsKey(pid));
+
+        Database.reset();
+        hf1 = Utility.openHeapFile(2, file1);
+        hf2 = Utility.openHeapFile(2, file2);
+        Database.getLogFile().recover();
+        assertEquals(1, tuplesOnDisk(hf1));
+    }
+
+    /**
+     * Unit test for BufferPool.writeCommittedPages(): pages with committed
+     * changes are written and leave the dirty page table; pages a running
+     * transaction changed are not.
+     */
+    @Test public void writeCommittedPages() throws Exception {
+        Transaction committed = new Transaction();
+        committed.start();
+        insert(committed.getId(), hf1, 1);
+        committed.commit();
+
+        Transaction running = new Transaction();
+        running.start();
+        insert(running.getId(), hf2, 2);
+
+        BufferPool pool = Database.getBufferPool();
+        assertEquals(1, pool.writeCommittedPages(10));
+        assertEquals(1, tuplesOnDisk(hf1));
+        assertEquals(0, tuplesOnDisk(hf2));
+        assertFalse(pool.getDirtyPageTable().containsKey(new HeapPageId(hf1.getId(), 0)));
+        assertNull(hf1.readPage(new HeapPageId(hf1.getId(), 0)).isDirty());
+        assertNotNull(pool.getPage(running.getId(), new HeapPageId(hf2.getId(), 0),
+                Permissions.READ_ONLY).isDirty());
+        running.commit();
+    }
+
+    /**
+     * Unit test for LogFile.setCheckpointLogBytes(): a checkpoint is taken
+     * once enough log was written.
+     */
+    @Test public void automaticCheckpoint() throws Exception {
+        LogFile log = Database.getLogFile();
+        Transaction t = new Transaction();
+        t.start();
+        t.commit();
+        long before = log.getLastCheckpointLsn();
+        log.setCheckpointLogBytes(1);
+        try {
+            t = new Transaction();
+            t.start();
+            insert(t.getId(), hf1, 1);
+            t.commit();
+            for (int i = 0; i < 100 && log.getLastCheckpointLsn() == before; i++) {
+                Thread.sleep(50);
+            }
+            assertTrue(log.getLastCheckpointLsn() > before);
+        } finally {
+            log.setCheckpointLogBytes(0);
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(FuzzyCheckpointTest.class);
+    }
+}
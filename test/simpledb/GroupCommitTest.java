@@ -0,0 +1,86 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class GroupCommitTest extends SimpleDbTestBase {
+
+    private LogFile log;
+
+    @Before public void resetLog() {
+        Database.reset();
+        log = Database.getLogFile();
+    }
+
+    private static long sum(long[] counts) {
+        long total = 0;
+        for (long c : counts) {
+            total += c;
+        }
+        return total;
+    }
+
+    /**
+     * Unit test for LogFile.logCommit(): a lone commit is written as a
+     * batch of one.
+     */
+    @Test public void singleCommit() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        t.commit();
+        long[] sizes = log.getCommitBatchSizes();
+        assertEquals(1, sizes[0]);
+        assertEquals(1, sum(sizes));
+        assertEquals(2, log.getTotalRecords());
+    }
+
+    /**
+     * Unit test for LogFile.logCommit(): transactions that commit within
+     * the group commit window share a write and a force.
+     */
+    @Test public void concurrentCommitsAreBatched() throws Exception {
+        final int threads = 16;
+        log.setGroupCommitWindow(200 * 1000);
+        final CountDownLatch ready = new CountDownLatch(threads);
+        Thread[] committers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            committers[i] = new Thread() {
+                public void run() {
+                    try {
+                        Transaction t = new Transaction();
+                        t.start();
+                        ready.countDown();
+                        ready.await();
+                        t.commit();
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            committers[i].start();
+        }
+        for (Thread t : committers) {
+            t.join();
+        }
+
+        long batches = sum(log.getCommitBatchSizes());
+        assertTrue("expected fewer batches than commits, got " + batches, batches < threads);
+        assertEquals(2 * threads, log.getTotalRecords());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(GroupCommitTest.class);
+    }
+}
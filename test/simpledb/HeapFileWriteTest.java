@@ -86,6 +86,55 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         it.close();
     }
 
+    /**
+     * Unit test for HeapFile.setMemoryMapped(): pages written or appended
+     * through the file must be visible through the mapping.
+     */
+    @Test public void memoryMappedReadPage() throws Exception {
+        HeapFile smallFile = SystemTestUtil.createRandomHeapFile(2, 1000, null, null);
+        int tableId = smallFile.getId();
+        smallFile.setMemoryMapped(true);
+        assertTrue(smallFile.isMemoryMapped());
+
+        HeapPageId pid0 = new HeapPageId(tableId, 0);
+        HeapPage page0 = (HeapPage) smallFile.readPage(pid0);
+        assertEquals(504 - 1000 % 504, ((HeapPage) smallFile.readPage(new HeapPageId(tableId, 1))).getNumEmptySlots());
+
+        // overwrite an existing page
+        page0.deleteTuple(page0.iterator().next());
+        smallFile.writePage(page0);
+        assertEquals(1, ((HeapPage) smallFile.readPage(pid0)).getNumEmptySlots());
+
+        // grow the file; the mapping must be refreshed to cover the new page
+        HeapPageId pid2 = new HeapPageId(tableId, 2);
+        HeapPage page2 = new HeapPage(pid2, HeapPage.createEmptyPageData());
+        page2.insertTuple(Utility.getHeapTuple(7, 2));
+        smallFile.writePage(page2);
+        assertEquals(3, smallFile.numPages());
+        assertEquals(503, ((HeapPage) smallFile.readPage(pid2)).getNumEmptySlots());
+    }
+
+    /**
+     * Unit test for HeapFile.close(): a table replaced in the catalog has
+     * its channel closed, and a closed file opens it again when read.
+     */
+    @Test public void replacedTableIsClosed() throws Exception {
+        HeapFile smallFile = SystemTestUtil.createRandomHeapFile(2, 1000, null, null);
+        HeapPageId pid0 = new HeapPageId(smallFile.getId(), 0);
+        smallFile.setMemoryMapped(true);
+        HeapPage page0 = (HeapPage) smallFile.readPage(pid0);
+        assertTrue(smallFile.isOpen());
+
+        String name = Database.getCatalog().getTableName(smallFile.getId());
+        HeapFile replacement = new HeapFile(smallFile.getFile(), smallFile.getTupleDesc());
+        Database.getCatalog().addTable(replacement, name);
+        assertFalse(smallFile.isOpen());
+
+        assertArrayEquals(page0.getPageData(), smallFile.readPage(pid0).getPageData());
+        assertTrue(smallFile.isOpen());
+        smallFile.close();
+    }
+
     /**
      * JUnit suite target
      */
@@ -0,0 +1,80 @@
+package simpledb;
+
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Microbenchmark for the HeapPage read path: constructing a page that is
+ * only read must not pay for a before image, which is captured when the
+ * page is first dirtied.
+ */
+public class HeapPageAllocationTest extends SimpleDbTestBase {
+    private static final int PAGES = 2000;
+
+    private HeapPageId pid;
+    private com.sun.management.ThreadMXBean threads;
+
+    @Before public void addTable() throws Exception {
+        this.pid = new HeapPageId(-1, -1);
+        Database.getCatalog().addTable(new SkeletonFile(-1, Utility.getTupleDesc(2)), SystemTestUtil.getUUID());
+
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        threads = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    /** Bytes allocated per page by reading (and optionally dirtying) pages. */
+    private long bytesPerPage(boolean dirty) throws Exception {
+        TransactionId tid = new TransactionId();
+        HeapPage[] pages = new HeapPage[PAGES];
+        long tid0 = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(tid0);
+        for (int i = 0; i < PAGES; i++) {
+            pages[i] = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+            if (dirty) {
+                pages[i].markDirty(true, tid);
+            }
+        }
+        long after = threads.getThreadAllocatedBytes(tid0);
+        return (after - before) / pages.length;
+    }
+
+    /**
+     * Reading a page must allocate at most about half of what reading and
+     * dirtying it does, i.e. no copy of the before image.
+     */
+    @Test public void readPathAllocation() throws Exception {
+        // warm up so that class loading and JIT do not skew the numbers
+        for (int i = 0; i < 5; i++) {
+            bytesPerPage(false);
+            bytesPerPage(true);
+        }
+        long read = bytesPerPage(false);
+        long written = bytesPerPage(true);
+        String allocated = "bytes allocated per page: read " + read
+                + ", read and dirtied " + written;
+
+        assertTrue(allocated, read < BufferPool.getPageSize() * 3 / 2);
+        assertTrue(allocated, read * 2 <= written * 11 / 10);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(HeapPageAllocationTest.class);
+    }
+}
@@ -4,6 +4,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedList;
 
@@ -126,6 +127,30 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Unit test for HeapPage lazy tuple decoding: a tuple handed out by the
+     * iterator must keep its values after its slot is deleted and reused.
+     */
+    @Test public void deletedTupleKeepsValues() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        Tuple first = page.iterator().next();
+        int f0 = ((IntField) first.getField(0)).getValue();
+
+        page.deleteTuple(first);
+        page.insertTuple(Utility.getHeapTuple(new int[] { f0 + 1, 0 }));
+
+        assertEquals(f0, ((IntField) first.getField(0)).getValue());
+        assertEquals(HeapPageReadTest.EXAMPLE_VALUES[0][1],
+                ((IntField) first.getField(1)).getValue());
+        Tuple reused = page.iterator().next();
+        assertEquals(first.getRecordId(), reused.getRecordId());
+        assertEquals(f0 + 1, ((IntField) reused.getField(0)).getValue());
+
+        // the encoded page must round-trip through the constructor
+        HeapPage copy = new HeapPage(pid, page.getPageData());
+        assertTrue(Arrays.equals(page.getPageData(), copy.getPageData()));
+    }
+
     /**
      * JUnit suite target
      */
@@ -0,0 +1,97 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+/**
+ * Measures how LockManager scales with threads locking disjoint pages and
+ * prints the results. Run with "ant benchmark"; not part of the unit tests,
+ * since the numbers depend on the machine and its load.
+ */
+public class LockManagerBenchmark extends SimpleDbTestBase {
+
+    /**
+     * Runs the specified number of threads, each locking and unlocking its
+     * own pages exclusively for a fixed time.
+     *
+     * @return lock and unlock pairs per second, over all threads
+     */
+    private static double lockThroughput(final LockManager locks, int threads, final long millis)
+            throws Exception {
+        final AtomicInteger ops = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            final int table = i;
+            workers[i] = new Thread() {
+                public void run() {
+                    TransactionId tid = new TransactionId();
+                    HeapPageId[] pids = new HeapPageId[16];
+                    for (int p = 0; p < pids.length; p++) {
+                        pids[p] = new HeapPageId(table, p);
+                    }
+                    try {
+                        start.await();
+                        long end = System.nanoTime() + millis * 1000000L;
+                        int n = 0;
+                        while (System.nanoTime() < end) {
+                            for (HeapPageId pid : pids) {
+                                if (!locks.acquireLock(tid, pid, Permissions.READ_WRITE)) {
+                                    failures.incrementAndGet();
+                                }
+                            }
+                            for (HeapPageId pid : pids) {
+                                locks.releaseLock(tid, pid);
+                            }
+                            n += pids.length;
+                        }
+                        ops.addAndGet(n);
+                    } catch (Exception e) {
+                        failures.incrementAndGet();
+                    }
+                }
+            };
+            workers[i].start();
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        assertEquals(0, failures.get());
+        return ops.get() * 1000.0 / millis;
+    }
+
+    /**
+     * Contention benchmark for LockManager: lock and unlock pairs per second
+     * of one thread, of 64 threads locking disjoint pages, and of the same
+     * threads sharing a single stripe, as when every lock operation went
+     * through a single monitor.
+     */
+    @Test public void disjointPages() throws Exception {
+        // warm up
+        lockThroughput(new LockManager(), 4, 200);
+
+        double one = lockThroughput(new LockManager(), 1, 500);
+        double many = lockThroughput(new LockManager(), 64, 500);
+        double oneStripe = lockThroughput(new LockManager(1), 64, 500);
+        System.out.println(String.format(
+                "LockManager lock/unlock pairs per second: 1 thread %.0f, 64 threads %.0f,"
+                + " 64 threads on 1 stripe %.0f", one, many, oneStripe));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockManagerBenchmark.class);
+    }
+}
@@ -0,0 +1,270 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class LockManagerTest extends SimpleDbTestBase {
+
+    private static final int WAIT_MILLIS = 200;
+
+    private LockManager locks;
+    private PageId pid;
+
+    @Before public void createLockManager() {
+        locks = new LockManager(LockManager.STRIPES, "detect");
+        pid = new HeapPageId(1, 0);
+    }
+
+    /** Acquires a lock on a thread of its own, which may block. */
+    private class Acquirer extends Thread {
+        final TransactionId tid;
+        final PageId pid;
+        final Permissions perm;
+        volatile boolean acquired;
+
+        Acquirer(Permissions perm) {
+            this(new TransactionId(), perm);
+        }
+
+        Acquirer(TransactionId tid, Permissions perm) {
+            this(tid, LockManagerTest.this.pid, perm);
+        }
+
+        Acquirer(TransactionId tid, PageId pid, Permissions perm) {
+            this.tid = tid;
+            this.pid = pid;
+            this.perm = perm;
+            setDaemon(true);
+        }
+
+        public void run() {
+            try {
+                acquired = locks.acquireLock(tid, pid, perm);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+
+        Acquirer begin() throws InterruptedException {
+            start();
+            join(WAIT_MILLIS);
+            return this;
+        }
+    }
+
+    /**
+     * Unit test for LockManager: a request that is compatible with the
+     * holders still waits behind an earlier conflicting waiter.
+     */
+    @Test public void fifoQueue() throws Exception {
+        Acquirer reader = new Acquirer(Permissions.READ_ONLY).begin();
+        assertTrue(reader.acquired);
+        Acquirer writer = new Acquirer(Permissions.READ_WRITE).begin();
+        assertFalse(writer.acquired);
+        Acquirer lateReader = new Acquirer(Permissions.READ_ONLY).begin();
+        assertFalse(lateReader.acquired);
+
+        locks.releaseLock(reader.tid, pid);
+        writer.join(WAIT_MILLIS);
+        assertTrue(writer.acquired);
+        lateReader.join(WAIT_MILLIS);
+        assertFalse(lateReader.acquired);
+
+        locks.releaseLock(writer.tid, pid);
+        lateReader.join(WAIT_MILLIS);
+        assertTrue(lateReader.acquired);
+    }
+
+    /**
+     * Unit test for LockManager: a release wakes the compatible waiters at
+     * the head of the queue, and only those.
+     */
+    @Test public void releaseWakesCompatibleWaiters() throws Exception {
+        Acquirer writer = new Acquirer(Permissions.READ_WRITE).begin();
+        assertTrue(writer.acquired);
+        Acquirer reader1 = new Acquirer(Permissions.READ_ONLY).begin();
+        Acquirer reader2 = new Acquirer(Permissions.READ_ONLY).begin();
+        Acquirer writer2 = new Acquirer(Permissions.READ_WRITE).begin();
+        assertFalse(reader1.acquired || reader2.acquired || writer2.acquired);
+
+        locks.releaseLock(writer.tid, pid);
+        reader1.join(WAIT_MILLIS);
+        reader2.join(WAIT_MILLIS);
+        writer2.join(WAIT_MILLIS);
+        assertTrue(reader1.acquired && reader2.acquired);
+        assertFalse(writer2.acquired);
+        assertTrue(locks.holdsLock(reader1.tid, pid) && locks.holdsLock(reader2.tid, pid));
+    }
+
+    /**
+     * Unit test for LockManager: a shared holder upgrading its lock goes
+     * ahead of the transactions already waiting.
+     */
+    @Test public void upgradeGoesFirst() throws Exception {
+        Acquirer reader1 = new Acquirer(Permissions.READ_ONLY).begin();
+        Acquirer reader2 = new Acquirer(Permissions.READ_ONLY).begin();
+        Acquirer writer = new Acquirer(Permissions.READ_WRITE).begin();
+        assertFalse(writer.acquired);
+
+        Acquirer upgrade = new Acquirer(reader1.tid, Permissions.READ_WRITE).begin();
+        assertFalse(upgrade.acquired);
+        locks.releaseLock(reader2.tid, pid);
+        upgrade.join(WAIT_MILLIS);
+        writer.join(WAIT_MILLIS);
+        assertTrue(upgrade.acquired);
+        assertFalse(writer.acquired);
+    }
+
+    /**
+     * Builds a deadlock of three transactions, each holding the page the
+     * previous one waits for, with the last request closing the cycle.
+     *
+     * @param extra pages each transaction locks first, besides its own
+     * @return the requests that were waiting when the cycle closed
+     */
+    private Acquirer[] threeWayDeadlock(int[] extra) throws Exception {
+        TransactionId[] tids = new TransactionId[3];
+        for (int i = 0; i < tids.length; i++) {
+            tids[i] = new TransactionId();
+            assertTrue(locks.acquireLock(tids[i], new HeapPageId(1, i), Permissions.READ_WRITE));
+            for (int j = 0; j < extra[i]; j++) {
+                assertTrue(locks.acquireLock(tids[i], new HeapPageId(2 + i, j), Permissions.READ_ONLY));
+            }
+        }
+        // the youngest waits first, so it does not close the cycle
+        Acquirer[] waiting = new Acquirer[3];
+        for (int i = 2; i >= 0; i--) {
+            waiting[i] = new Acquirer(tids[i], new HeapPageId(1, (i + 1) % 3),
+                    Permissions.READ_WRITE).begin();
+        }
+        return waiting;
+    }
+
+    /**
+     * Unit test for LockManager: a cycle of three waiting transactions is
+     * a deadlock, and the youngest of them is aborted even though another
+     * one closed the cycle.
+     */
+    @Test public void youngestVictim() throws Exception {
+        locks.setVictimPolicy("youngest");
+        Acquirer[] waiting = threeWayDeadlock(new int[] { 0, 0, 0 });
+        assertEquals(1, locks.getDeadlockCount());
+        assertFalse(waiting[2].isAlive() || waiting[2].acquired);
+        assertTrue(waiting[0].isAlive() && waiting[1].isAlive());
+
+        locks.releaseLock(waiting[2].tid, new HeapPageId(1, 2));
+        waiting[1].join(WAIT_MILLIS);
+        assertTrue(waiting[1].acquired);
+        assertTrue(waiting[0].isAlive());
+    }
+
+    /**
+     * Unit test for LockManager: the "fewest-locks" victim policy aborts
+     * the transaction of a deadlock holding the fewest locks.
+     */
+    @Test public void fewestLocksVictim() throws Exception {
+        locks.setVictimPolicy("fewest-locks");
+        Acquirer[] waiting = threeWayDeadlock(new int[] { 2, 0, 3 });
+        assertEquals(1, locks.getDeadlockCount());
+        assertFalse(waiting[1].isAlive() || waiting[1].acquired);
+        assertTrue(waiting[0].isAlive() && waiting[2].isAlive());
+    }
+
+    /**
+     * Unit test for LockManager.setVictimPolicy(): unknown names are rejected.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownVictimPolicy() {
+        locks.setVictimPolicy("oldest");
+    }
+
+    /**
+     * Unit test for LockManager with wait-die: a transaction blocked by an
+     * older one fails at once, while an older one waits.
+     */
+    @Test public void waitDie() throws Exception {
+        locks = new LockManager(LockManager.STRIPES, "wait-die");
+        TransactionId older = new TransactionId();
+        TransactionId younger = new TransactionId();
+        PageId other = new HeapPageId(1, 1);
+        assertTrue(locks.acquireLock(older, pid, Permissions.READ_WRITE));
+        assertTrue(locks.acquireLock(younger, other, Permissions.READ_WRITE));
+
+        assertFalse(locks.acquireLock(younger, pid, Permissions.READ_ONLY));
+        Acquirer waiting = new Acquirer(older, other, Permissions.READ_ONLY).begin();
+        assertFalse(waiting.acquired);
+        assertTrue(waiting.isAlive());
+
+        locks.releaseLock(younger, other);
+        waiting.join(WAIT_MILLIS);
+        assertTrue(waiting.acquired);
+    }
+
+    /**
+     * Unit test for LockManager with wound-wait: a transaction blocked by a
+     * younger one waits and wounds it. This fails the request the younger
+     * one waits on, and every later one, even for a lock it holds.
+     */
+    @Test public void woundWait() throws Exception {
+        locks = new LockManager(LockManager.STRIPES, "wound-wait");
+        TransactionId oldest = new TransactionId();
+        TransactionId middle = new TransactionId();
+        TransactionId youngest = new TransactionId();
+        PageId other = new HeapPageId(1, 1);
+        assertTrue(locks.acquireLock(middle, pid, Permissions.READ_WRITE));
+        assertTrue(locks.acquireLock(youngest, other, Permissions.READ_WRITE));
+
+        Acquirer wounding = new Acquirer(middle, other, Permissions.READ_WRITE).begin();
+        assertTrue(wounding.isAlive());
+        Acquirer waiting = new Acquirer(oldest, pid, Permissions.READ_WRITE).begin();
+        assertTrue(waiting.isAlive());
+        wounding.join(WAIT_MILLIS);
+        assertFalse(wounding.isAlive() || wounding.acquired);
+
+        // the wounded transaction fails even a request it could be granted
+        assertFalse(locks.acquireLock(youngest, other, Permissions.READ_ONLY));
+        locks.releaseLock(middle, pid);
+        waiting.join(WAIT_MILLIS);
+        assertTrue(waiting.acquired);
+    }
+
+    /**
+     * Unit test for LockManager: a lock operation holding one stripe does
+     * not hold up an acquire of a page in another stripe, while it does
+     * hold up one in its own.
+     */
+    @Test public void disjointStripesDoNotContend() throws Exception {
+        locks = new LockManager(2);
+        PageId other = pid;
+        for (int pgNo = 1; locks.stripeIndex(other) == locks.stripeIndex(pid); pgNo++) {
+            other = new HeapPageId(pgNo, 0);
+        }
+        Acquirer sameStripe;
+        locks.lockStripe(pid);
+        try {
+            Acquirer otherStripe = new Acquirer(new TransactionId(), other, Permissions.READ_WRITE).begin();
+            assertTrue(otherStripe.acquired);
+            sameStripe = new Acquirer(Permissions.READ_WRITE).begin();
+            assertTrue(sameStripe.isAlive());
+        } finally {
+            locks.unlockStripe(pid);
+        }
+        sameStripe.join(WAIT_MILLIS);
+        assertTrue(sameStripe.acquired);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockManagerTest.class);
+    }
+}
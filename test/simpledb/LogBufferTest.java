@@ -0,0 +1,102 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class LogBufferTest extends SimpleDbTestBase {
+
+    private File file;
+    private LogSegments segments;
+
+    @Before public void createFile() throws Exception {
+        file = File.createTempFile("logbuffer", ".dat");
+        segments = new LogSegments(file, 1024);
+    }
+
+    @After public void deleteFile() throws Exception {
+        segments.close();
+        LogSegmentsTest.deleteSegments(file);
+    }
+
+    /**
+     * Unit test for LogBuffer: records are written out whole, up to the end
+     * of the record that contains a given offset.
+     */
+    @Test public void writeUpToRecord() throws Exception {
+        segments.setLength(8);
+        LogBuffer buffer = new LogBuffer(64, 8);
+        assertEquals(8, buffer.append(new byte[10], 10, segments));
+        assertEquals(18, buffer.append(new byte[20], 20, segments));
+        assertEquals(38, buffer.append(new byte[5], 5, segments));
+        assertEquals(43, buffer.end());
+
+        assertEquals(18, buffer.endOfRecord(8));
+        assertEquals(38, buffer.endOfRecord(18));
+        assertEquals(38, buffer.endOfRecord(37));
+        assertEquals(43, buffer.endOfRecord(100));
+
+        buffer.writeTo(segments, buffer.endOfRecord(20));
+        assertEquals(38, segments.length());
+        assertEquals(38, buffer.start());
+        assertEquals(43, buffer.endOfRecord(38));
+        assertEquals(20, buffer.endOfRecord(20));
+    }
+
+    /**
+     * Unit test for LogBuffer: a record that does not fit writes out the
+     * buffered ones first, and a record larger than the buffer still fits.
+     */
+    @Test public void overflow() throws Exception {
+        LogBuffer buffer = new LogBuffer(16, 0);
+        buffer.append(new byte[12], 12, segments);
+        assertEquals(12, buffer.append(new byte[12], 12, segments));
+        assertEquals(12, segments.length());
+        assertEquals(24, buffer.append(new byte[40], 40, segments));
+        assertEquals(24, segments.length());
+        buffer.writeTo(segments, buffer.end());
+        assertEquals(64, segments.length());
+    }
+
+    /**
+     * Unit test for LogFile.force(lsn): only the records up to the
+     * requested one reach the segments.
+     */
+    @Test public void forceUpToLsn() throws Exception {
+        Database.reset();
+        LogFile log = Database.getLogFile();
+        TransactionId tid = new TransactionId();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 1, null, null);
+        Page page = new HeapPage(new HeapPageId(hf.getId(), 0), HeapPage.createEmptyPageData());
+
+        log.logXactionBegin(tid);
+        long first = log.logWrite(tid, page, page);
+        long second = log.logWrite(tid, page, page);
+        assertTrue(first < second);
+        assertTrue(log.getFlushedLsn() <= first);
+
+        log.force(first);
+        assertEquals(second, log.getFlushedLsn());
+        assertEquals(second, log.segments.length());
+
+        log.force();
+        assertEquals(log.getNextLsn(), log.getFlushedLsn());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogBufferTest.class);
+    }
+}
@@ -0,0 +1,152 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class LogSegmentsTest extends SimpleDbTestBase {
+
+    private File file;
+    private LogSegments segments;
+
+    @Before public void createSegments() throws Exception {
+        file = File.createTempFile("logsegments", ".log");
+        segments = new LogSegments(file, 16);
+    }
+
+    @After public void deleteSegments() throws Exception {
+        segments.close();
+        deleteSegments(file);
+    }
+
+    /** Deletes a log file with its segments and manifest. */
+    static void deleteSegments(File file) {
+        File[] files = file.getAbsoluteFile().getParentFile().listFiles();
+        if (files != null) {
+            for (File f : files) {
+                if (f.getName().startsWith(file.getName())) {
+                    f.delete();
+                }
+            }
+        }
+    }
+
+    private File segmentFile(long index) {
+        return new File(String.format("%s.%012d", file.getAbsolutePath(), index));
+    }
+
+    private static byte[] bytes(int from, int len) {
+        byte[] b = new byte[len];
+        for (int i = 0; i < len; i++) {
+            b[i] = (byte) (from + i);
+        }
+        return b;
+    }
+
+    /**
+     * Unit test for LogSegments.write(): bytes spanning segments are split
+     * across segment files of the fixed size, and read back whole.
+     */
+    @Test public void writeAcrossSegments() throws Exception {
+        segments.reset(1);
+        long start = segments.getStart();
+        segments.write(start, bytes(0, 40), 0, 40);
+        assertEquals(start + 40, segments.length());
+        for (long i = start / 16; i < start / 16 + 3; i++) {
+            assertTrue(segmentFile(i).exists());
+            assertEquals(16, segmentFile(i).length());
+        }
+
+        byte[] read = new byte[30];
+        segments.seek(start + 5);
+        segments.readFully(read);
+        assertArrayEquals(bytes(5, 30), read);
+        assertEquals(start + 35, segments.getFilePointer());
+    }
+
+    /**
+     * Unit test for LogSegments.write(): a segment is filled with zeros
+     * ahead of the bytes written in doubling extents, so a short log keeps
+     * a small file, and never beyond the segment size.
+     */
+    @Test public void segmentsGrowInExtents() throws Exception {
+        segments.close();
+        segments = new LogSegments(file, 1 << 20);
+        long start = segments.reset(1);
+        File first = segmentFile(start / (1 << 20));
+        segments.write(start, bytes(0, 100), 0, 100);
+        assertEquals(64 * 1024, first.length());
+
+        segments.write(start + 100 * 1024, bytes(0, 100), 0, 100);
+        assertEquals(128 * 1024, first.length());
+        segments.write(start + (1 << 20) - 100, bytes(0, 100), 0, 100);
+        assertEquals(1 << 20, first.length());
+    }
+
+    /**
+     * Unit test for LogSegments.truncate(): segments before the new start
+     * are renamed to follow the end of the log, up to SPARE_SEGMENTS of
+     * them, and the rest deleted; the start survives a reopen.
+     */
+    @Test public void truncateRecycles() throws Exception {
+        long start = segments.reset(1);
+        segments.write(start, bytes(0, 80), 0, 80);
+        segments.truncate(start + 70);
+        assertEquals(start + 70, segments.getStart());
+
+        long last = (start + 79) / 16;
+        for (long i = start / 16; i < last; i++) {
+            assertFalse(segmentFile(i).exists());
+        }
+        assertTrue(segmentFile(last).exists());
+        assertTrue(segmentFile(last + 1).exists());
+        assertTrue(segmentFile(last + 2).exists());
+        assertFalse(segmentFile(last + 3).exists());
+
+        segments.close();
+        segments = new LogSegments(file, 1024);
+        assertTrue(segments.exists());
+        assertEquals(16, segments.getSegmentSize());
+        assertEquals(start + 70, segments.getStart());
+        assertEquals(1, segments.getLogId());
+    }
+
+    /**
+     * Unit test for LogFile: after a restart, appends continue at the end
+     * of the last record, also when recycled segments follow it.
+     */
+    @Test public void findEndAfterRestart() throws Exception {
+        Database.reset();
+        LogFile log = Database.getLogFile();
+        for (int i = 0; i < 3; i++) {
+            Transaction t = new Transaction();
+            t.start();
+            t.commit();
+            log.logCheckpoint();
+        }
+        long end = log.getNextLsn();
+        log.force();
+
+        Database.reset();
+        assertEquals(end, Database.getLogFile().getNextLsn());
+        assertEquals(log.getLogId(), Database.getLogFile().getLogId());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogSegmentsTest.class);
+    }
+}
@@ -0,0 +1,92 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PageCodecsTest extends SimpleDbTestBase {
+
+    private HeapPage page;
+
+    @Before public void createPage() throws Exception {
+        Database.reset();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 20, null, null);
+        page = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), 0));
+    }
+
+    /**
+     * Unit test for LogFile.writePageData() and readPageData(): a HeapPage
+     * is written as its type code, size, id and image only, and read back
+     * equal.
+     */
+    @Test public void heapPageRoundTrip() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Database.getLogFile().writePageData(new DataOutputStream(bytes), page);
+        assertEquals(4 * 4 + BufferPool.getPageSize(), bytes.size());
+
+        Page read = Database.getLogFile().readPageData(
+                new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(HeapPage.class, read.getClass());
+        assertEquals(page.getId(), read.getId());
+        assertArrayEquals(page.getPageData(), read.getPageData());
+    }
+
+    /**
+     * Unit test for LogFile.readPageData(): an image with an unregistered
+     * type code is rejected.
+     */
+    @Test public void unknownCode() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0);
+        out.writeInt(0);
+        try {
+            Database.getLogFile().readPageData(
+                    new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+            fail("expected IOException");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Unit test for PageCodecs.register(): a code or page type can only be
+     * registered once.
+     */
+    @Test public void registerOnce() {
+        try {
+            PageCodecs.register(PageCodecs.HEAP_PAGE, Page.class, HeapPage.CODEC);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            PageCodecs.register(1000, HeapPage.class, HeapPage.CODEC);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertEquals(null, PageCodecs.get(1000));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageCodecsTest.class);
+    }
+}
@@ -0,0 +1,85 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PageDeltaTest extends SimpleDbTestBase {
+
+    private HeapPageId pid;
+    private byte[] before;
+    private byte[] after;
+
+    @Before public void createImages() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 1, null, null);
+        pid = new HeapPageId(hf.getId(), 0);
+        HeapPage page = new HeapPage(pid, HeapPage.createEmptyPageData());
+        before = page.getPageData();
+        page.insertTuple(Utility.getHeapTuple(new int[] { 7, 9 }));
+        after = page.getPageData();
+    }
+
+    /**
+     * Unit test for PageDelta: a delta turns the before image into the
+     * after image and back, and survives being written and read.
+     */
+    @Test public void redoAndUndo() throws Exception {
+        PageDelta delta = PageDelta.diff(pid, before, after);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        delta.write(new DataOutputStream(bytes));
+        delta = PageDelta.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(pid, delta.getPageId());
+
+        byte[] image = before.clone();
+        delta.redo(image);
+        assertArrayEquals(after, image);
+        delta.undo(image);
+        assertArrayEquals(before, image);
+    }
+
+    /**
+     * Unit test for PageDelta: changing one tuple logs a few bytes rather
+     * than the whole page.
+     */
+    @Test public void smallChangeSmallDelta() throws Exception {
+        PageDelta delta = PageDelta.diff(pid, before, after);
+        assertTrue(delta.changedBytes() <= 9);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        delta.write(new DataOutputStream(bytes));
+        assertTrue(bytes.size() < 64);
+
+        assertEquals(0, PageDelta.diff(pid, after, after).changedBytes());
+    }
+
+    /**
+     * Unit test for LogFile.logWrite(): an update of a HeapPage is logged
+     * as a DELTA record a small fraction of the size of the page.
+     */
+    @Test public void logWriteUsesDelta() throws Exception {
+        LogFile log = Database.getLogFile();
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        long lsn = log.logWrite(tid, new HeapPage(pid, before), new HeapPage(pid, after));
+        assertTrue(log.getNextLsn() - lsn < BufferPool.getPageSize() / 10);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageDeltaTest.class);
+    }
+}
@@ -0,0 +1,128 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ReplacementPolicyTest extends SimpleDbTestBase {
+
+    private static final ReplacementPolicy.Evictable ANY = new ReplacementPolicy.Evictable() {
+        public boolean canEvict(PageId pid) {
+            return true;
+        }
+    };
+
+    private static HeapPageId page(int pgNo) {
+        return new HeapPageId(1, pgNo);
+    }
+
+    /**
+     * Unit test for ClockPolicy: a page accessed since the hand last passed
+     * it gets a second chance.
+     */
+    @Test public void clockSecondChance() {
+        ClockPolicy clock = new ClockPolicy();
+        clock.pageAdded(page(0));
+        clock.pageAdded(page(1));
+        clock.pageAdded(page(2));
+        // every bit is set, so the sweep clears them all and comes back to 0
+        assertEquals(page(0), clock.chooseVictim(ANY));
+        clock.pageAccessed(page(0));
+        assertEquals(page(1), clock.chooseVictim(ANY));
+        clock.pageRemoved(page(1));
+        assertEquals(page(2), clock.chooseVictim(ANY));
+    }
+
+    /**
+     * Unit test for LruKPolicy: pages with fewer than K accesses go first,
+     * then the page whose K-th most recent access is oldest.
+     */
+    @Test public void lruKPrefersPagesSeenOnce() {
+        LruKPolicy lruk = new LruKPolicy(2);
+        lruk.pageAdded(page(0));
+        lruk.pageAccessed(page(0));
+        lruk.pageAdded(page(1));
+        lruk.pageAccessed(page(1));
+        lruk.pageAdded(page(2));
+        assertEquals(page(2), lruk.chooseVictim(ANY));
+        lruk.pageRemoved(page(2));
+        assertEquals(page(0), lruk.chooseVictim(ANY));
+        lruk.pageAccessed(page(0));
+        lruk.pageAccessed(page(0));
+        assertEquals(page(1), lruk.chooseVictim(ANY));
+    }
+
+    /**
+     * Unit test for TwoQueuePolicy: a page read again after eviction from
+     * A1in is protected in Am from pages that are read only once.
+     */
+    @Test public void twoQueueScanResistance() {
+        TwoQueuePolicy twoq = new TwoQueuePolicy(4);
+        twoq.pageAdded(page(0));
+        assertEquals(page(0), twoq.chooseVictim(ANY));
+        twoq.pageRemoved(page(0));
+        twoq.pageAdded(page(0));
+        for (int i = 1; i < 4; i++) {
+            twoq.pageAdded(page(i));
+        }
+        // A1in is over its target size, so the scan evicts its own pages
+        for (int i = 1; i < 3; i++) {
+            assertEquals(page(i), twoq.chooseVictim(ANY));
+            twoq.pageRemoved(page(i));
+            twoq.pageAdded(page(i + 3));
+        }
+        assertEquals(page(3), twoq.chooseVictim(ANY));
+    }
+
+    /**
+     * Unit test for ReplacementPolicy.chooseVictim(): pages the filter
+     * rejects are never chosen.
+     */
+    @Test public void skipsPagesThatCannotBeEvicted() {
+        ReplacementPolicy.Evictable onlyOdd = new ReplacementPolicy.Evictable() {
+            public boolean canEvict(PageId pid) {
+                return pid.getPageNumber() % 2 == 1;
+            }
+        };
+        ReplacementPolicy[] policies = {
+            new ClockPolicy(), new LruKPolicy(2), new TwoQueuePolicy(4)
+        };
+        for (ReplacementPolicy policy : policies) {
+            policy.pageAdded(page(0));
+            assertNull(policy.chooseVictim(onlyOdd));
+            policy.pageAdded(page(1));
+            assertEquals(page(1), policy.chooseVictim(onlyOdd));
+        }
+    }
+
+    /**
+     * Unit test for BufferPool: hits and misses are counted and pages are
+     * evicted once the pool is full.
+     */
+    @Test public void bufferPoolStatistics() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 3, null, null);
+        BufferPool bp = Database.resetBufferPool(2);
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 3; i++) {
+            bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+        }
+        bp.getPage(tid, new HeapPageId(hf.getId(), 2), Permissions.READ_ONLY);
+        assertEquals(3, bp.getMissCount());
+        assertEquals(1, bp.getHitCount());
+        assertEquals(1, bp.getEvictionCount());
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReplacementPolicyTest.class);
+    }
+}
@@ -84,10 +84,12 @@ public class TransactionTest extends SimpleDbTestBase {
         public void run() {
             try {
                 // Try to increment the value until we manage to successfully commit
+                Transaction aborted = null;
                 while (true) {
                     // Wait for all threads to be ready
                     latch.await();
-                    Transaction tr = new Transaction();
+                    // a retry keeps its age, so it is not aborted forever
+                    Transaction tr = aborted == null ? new Transaction() : new Transaction(aborted);
                     try {
                         tr.start();
                         SeqScan ss1 = new SeqScan(tr.getId(), tableId, "");
@@ -138,6 +140,7 @@ public class TransactionTest extends SimpleDbTestBase {
                         //System.out.println("thread " + tr.getId() + " killed");
                         // give someone else a chance: abort the transaction
                         tr.transactionComplete(true);
+                        aborted = tr;
                         latch.stillParticipating();
                     }
                 }